@@ -44,6 +44,7 @@ public class Constants {
     public static final String KEY_DEBUG_TEXT_VIEW_ENABLED = "debug_text_view_enabled";
     public static final String KEY_TIMESHIFT_ENABLED = "timeshift_enabled";
     public static final String KEY_DVR_ENABLED = "dvr_enabled";
+    public static final String KEY_PARALLEL_RECORDING_FETCH_ENABLED = "parallel_recording_fetch_enabled";
     public static final String KEY_HTSP_STREAM_PROFILE = "htsp_stream_profile";
 
     // Bundle and Preference Keys
@@ -58,6 +59,7 @@ public class Constants {
     public static final String KEY_EPG_MAX_TIME = "epg_max_time";
     public static final String KEY_EPG_LAST_UPDATE_ENABLED = "epg_last_update_enabled";
     public static final String KEY_EPG_LAST_UPDATE = "epg_last_update"; // Todo: This name is confusing...
+    public static final String KEY_EPG_LAST_SWEEP = "epg_last_sweep";
     public static final String KEY_EPG_DEFAULT_POSTER_ART_ENABLED = "epg_default_poster_art_enabled";
 
     private Constants() {
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend;
+
+import java.util.Arrays;
+
+/**
+ * An int to long hash map, using open addressing with linear probing over primitive arrays.
+ * <p>
+ * Unlike SparseLongArray, inserts and removes don't shift the arrays, so it stays fast with
+ * hundreds of thousands of entries, and unlike HashMap it doesn't box its keys or values.
+ * Iteration order is undefined. Not thread safe.
+ */
+public class IntLongMap {
+    private static final int EMPTY = 0;
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] mKeys;
+    private long[] mValues;
+    private int mShift;
+    private int mSize;
+
+    // Key 0 marks empty slots, so it is stored on the side
+    private boolean mHasZeroKey;
+    private long mZeroValue;
+
+    public IntLongMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public IntLongMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public boolean containsKey(int key) {
+        if (key == EMPTY) {
+            return mHasZeroKey;
+        }
+
+        return findSlot(key) >= 0;
+    }
+
+    /**
+     * @return The value for the key, or missingValue if there is none
+     */
+    public long get(int key, long missingValue) {
+        if (key == EMPTY) {
+            return mHasZeroKey ? mZeroValue : missingValue;
+        }
+
+        final int slot = findSlot(key);
+        return slot >= 0 ? mValues[slot] : missingValue;
+    }
+
+    public void put(int key, long value) {
+        if (key == EMPTY) {
+            if (!mHasZeroKey) {
+                mHasZeroKey = true;
+                mSize++;
+            }
+            mZeroValue = value;
+            return;
+        }
+
+        final int mask = mKeys.length - 1;
+        int slot = slotFor(key);
+        while (mKeys[slot] != EMPTY) {
+            if (mKeys[slot] == key) {
+                mValues[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mSize++;
+
+        if (mSize * 4 >= mKeys.length * 3) {
+            rehash(mKeys.length * 2);
+        }
+    }
+
+    /**
+     * @return True if the key was present
+     */
+    public boolean remove(int key) {
+        if (key == EMPTY) {
+            if (!mHasZeroKey) {
+                return false;
+            }
+            mHasZeroKey = false;
+            mSize--;
+            return true;
+        }
+
+        int slot = findSlot(key);
+        if (slot < 0) {
+            return false;
+        }
+
+        // Shift back any following entries that probed past this slot, so that lookups never
+        // need tombstones
+        final int mask = mKeys.length - 1;
+        int next = (slot + 1) & mask;
+        while (mKeys[next] != EMPTY) {
+            final int ideal = slotFor(mKeys[next]);
+            if (((next - ideal) & mask) >= ((next - slot) & mask)) {
+                mKeys[slot] = mKeys[next];
+                mValues[slot] = mValues[next];
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+
+        mKeys[slot] = EMPTY;
+        mSize--;
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        mHasZeroKey = false;
+        mSize = 0;
+    }
+
+    /**
+     * @return A snapshot of the keys, safe to iterate while the map is modified
+     */
+    public int[] keys() {
+        final int[] keys = new int[mSize];
+        int i = 0;
+
+        if (mHasZeroKey) {
+            keys[i++] = EMPTY;
+        }
+
+        for (int key : mKeys) {
+            if (key != EMPTY) {
+                keys[i++] = key;
+            }
+        }
+
+        return keys;
+    }
+
+    // Internal Methods
+    private int slotFor(int key) {
+        // Fibonacci hashing, the top bits of the product spread sequential IDs across the table
+        return (key * 0x9e3779b9) >>> mShift;
+    }
+
+    private int findSlot(int key) {
+        final int mask = mKeys.length - 1;
+        int slot = slotFor(key);
+        while (mKeys[slot] != EMPTY) {
+            if (mKeys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new int[capacity];
+        mValues = new long[capacity];
+        // The capacity is a power of two, slots take that many top bits of the hash
+        mShift = Integer.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    private void rehash(int capacity) {
+        final int[] oldKeys = mKeys;
+        final long[] oldValues = mValues;
+
+        allocate(capacity);
+
+        final int mask = mKeys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            final int key = oldKeys[i];
+            if (key != EMPTY) {
+                int slot = slotFor(key);
+                while (mKeys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                mKeys[slot] = key;
+                mValues[slot] = oldValues[i];
+            }
+        }
+    }
+
+    static int capacityFor(int expectedSize) {
+        // Keep the load factor under 3/4
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 <= expectedSize * 4) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend;
+
+import java.util.Arrays;
+
+/**
+ * A set of ints, using open addressing with linear probing over a primitive array. The int
+ * counterpart of {@link IntLongMap}, without the values or removal. Not thread safe.
+ */
+public class IntSet {
+    private static final int EMPTY = 0;
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] mKeys;
+    private int mShift;
+    private int mSize;
+
+    // Key 0 marks empty slots, so it is tracked on the side
+    private boolean mHasZeroKey;
+
+    public IntSet() {
+        this(MIN_CAPACITY);
+    }
+
+    public IntSet(int expectedSize) {
+        allocate(IntLongMap.capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean contains(int key) {
+        if (key == EMPTY) {
+            return mHasZeroKey;
+        }
+
+        final int mask = mKeys.length - 1;
+        int slot = slotFor(key);
+        while (mKeys[slot] != EMPTY) {
+            if (mKeys[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return True if the key wasn't already in the set
+     */
+    public boolean add(int key) {
+        if (key == EMPTY) {
+            if (mHasZeroKey) {
+                return false;
+            }
+            mHasZeroKey = true;
+            mSize++;
+            return true;
+        }
+
+        final int mask = mKeys.length - 1;
+        int slot = slotFor(key);
+        while (mKeys[slot] != EMPTY) {
+            if (mKeys[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        mKeys[slot] = key;
+        mSize++;
+
+        if (mSize * 4 >= mKeys.length * 3) {
+            rehash(mKeys.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * Empties the set, and releases its storage if it had grown large.
+     */
+    public void clear() {
+        if (mKeys.length > MIN_CAPACITY * 64) {
+            allocate(MIN_CAPACITY);
+        } else {
+            Arrays.fill(mKeys, EMPTY);
+        }
+        mHasZeroKey = false;
+        mSize = 0;
+    }
+
+    // Internal Methods
+    private int slotFor(int key) {
+        // Fibonacci hashing, see IntLongMap
+        return (key * 0x9e3779b9) >>> mShift;
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new int[capacity];
+        // The capacity is a power of two, slots take that many top bits of the hash
+        mShift = Integer.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    private void rehash(int capacity) {
+        final int[] oldKeys = mKeys;
+
+        allocate(capacity);
+
+        final int mask = mKeys.length - 1;
+        for (int key : oldKeys) {
+            if (key != EMPTY) {
+                int slot = slotFor(key);
+                while (mKeys[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                mKeys[slot] = key;
+            }
+        }
+    }
+}
@@ -21,7 +21,6 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.util.Log;
-import android.util.SparseArray;
 
 import androidx.annotation.RequiresApi;
 import androidx.tvprovider.media.tv.TvContractCompat;
@@ -32,7 +31,6 @@ public class TvContractUtils {
     private static final String TAG = TvContractUtils.class.getName();
 
     public static final long INVALID_CHANNEL_ID = -1;
-    private static final long INVALID_RECORDED_PROGRAM_ID = -1;
 
     private TvContractUtils() {
     }
@@ -106,11 +104,11 @@ public class TvContractUtils {
         return null;
     }
 
-    public static SparseArray<Uri> buildChannelUriMap(Context context) {
+    public static IntLongMap buildChannelIdMap(Context context) {
         ContentResolver resolver = context.getContentResolver();
 
         // Create a map from original network ID to channel row ID for existing channels.
-        SparseArray<Uri> channelMap = new SparseArray<>();
+        IntLongMap channelMap = new IntLongMap();
         Uri channelsUri = TvContractCompat.buildChannelsUriForInput(TvContractUtils.getInputId());
         String[] projection = {TvContractCompat.Channels._ID, TvContractCompat.Channels.COLUMN_ORIGINAL_NETWORK_ID};
 
@@ -118,7 +116,7 @@ public class TvContractUtils {
             while (cursor != null && cursor.moveToNext()) {
                 long rowId = cursor.getLong(0);
                 int originalNetworkId = cursor.getInt(1);
-                channelMap.put(originalNetworkId, TvContractCompat.buildChannelUri(rowId));
+                channelMap.put(originalNetworkId, rowId);
             }
         }
 
@@ -184,77 +182,47 @@ public class TvContractUtils {
         return null;
     }
 
-    public static SparseArray<Uri> buildProgramUriMap(Context context) {
+    public static IntLongMap buildProgramIdMap(Context context) {
         ContentResolver resolver = context.getContentResolver();
 
         // Create a map from event id to program row ID for existing programs.
-        SparseArray<Uri> programMap = new SparseArray<>();
+        IntLongMap programMap = new IntLongMap();
 
         Uri channelsUri = TvContractCompat.buildChannelsUriForInput(TvContractUtils.getInputId());
 
         String[] channelsProjection = {TvContractCompat.Channels._ID};
         try (Cursor cursor = resolver.query(channelsUri, channelsProjection, null, null, null)) {
             while (cursor != null && cursor.moveToNext()) {
-                SparseArray<Uri> channelPrgramMap = buildProgramUriMap(context, TvContractCompat.buildChannelUri(cursor.getLong(0)));
-                for (int i = 0; i < channelPrgramMap.size(); i++) {
-                    int key = channelPrgramMap.keyAt(i);
-                    Uri value = channelPrgramMap.valueAt(i);
-                    programMap.put(key, value);
-                }
+                buildProgramIdMap(context, cursor.getLong(0), programMap);
             }
         }
 
         return programMap;
     }
 
-    private static SparseArray<Uri> buildProgramUriMap(Context context, Uri channelUri) {
-        ContentResolver resolver = context.getContentResolver();
-
-        // Create a map from event id to program row ID for existing programs.
-        SparseArray<Uri> programMap = new SparseArray<>();
-
-        Uri programsUri = TvContractCompat.buildProgramsUriForChannel(channelUri);
-        String[] projection = {TvContractCompat.Programs._ID, TvContractCompat.Programs.COLUMN_INTERNAL_PROVIDER_DATA};
-
-        try (Cursor cursor = resolver.query(programsUri, projection, null, null, null)) {
-            while (cursor != null && cursor.moveToNext()) {
-                long rowId = cursor.getLong(0);
-                int tvhEventId = Integer.valueOf(cursor.getString(1));
-                programMap.put(tvhEventId, TvContractCompat.buildChannelUri(rowId));
-            }
-        }
-
+    public static IntLongMap buildProgramIdMap(Context context, long androidChannelId) {
+        IntLongMap programMap = new IntLongMap();
+        buildProgramIdMap(context, androidChannelId, programMap);
         return programMap;
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.N)
-    private static long getRecordedProgramId(Context context, int dvrEntryId) {
+    private static void buildProgramIdMap(Context context, long androidChannelId, IntLongMap programMap) {
         ContentResolver resolver = context.getContentResolver();
 
-        Uri recordedProgramsUri = TvContractCompat.RecordedPrograms.CONTENT_URI;
-
-        String[] projection = {TvContractCompat.RecordedPrograms._ID, TvContractCompat.RecordedPrograms.COLUMN_INTERNAL_PROVIDER_DATA};
+        Uri programsUri = TvContractCompat.buildProgramsUriForChannel(androidChannelId);
+        String[] projection = {TvContractCompat.Programs._ID, TvContractCompat.Programs.COLUMN_INTERNAL_PROVIDER_DATA};
 
-        try (Cursor cursor = resolver.query(recordedProgramsUri, projection, null, null, null)) {
+        try (Cursor cursor = resolver.query(programsUri, projection, null, null, null)) {
             while (cursor != null && cursor.moveToNext()) {
-                if (cursor.getInt(1) == dvrEntryId) {
-                    return cursor.getLong(0);
+                if (cursor.isNull(1)) {
+                    // Not one of ours
+                    continue;
                 }
+                long rowId = cursor.getLong(0);
+                int tvhEventId = Integer.valueOf(cursor.getString(1));
+                programMap.put(tvhEventId, rowId);
             }
         }
-
-        return INVALID_CHANNEL_ID;
-    }
-
-    @RequiresApi(api = Build.VERSION_CODES.N)
-    public static Uri getRecordedProgramUri(Context context, int dvrEntryId) {
-        long androidRecordedProgramId = getRecordedProgramId(context, dvrEntryId);
-
-        if (androidRecordedProgramId != INVALID_RECORDED_PROGRAM_ID) {
-            return TvContractCompat.buildRecordedProgramUri(androidRecordedProgramId);
-        }
-
-        return null;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
@@ -274,12 +242,11 @@ public class TvContractUtils {
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
-    public static SparseArray<Uri> buildRecordedProgramUriMap(Context context) {
+    public static IntLongMap buildRecordedProgramIdMap(Context context) {
         // Create a map from dvr entry id to program row ID for existing recorded programs.
         ContentResolver resolver = context.getContentResolver();
 
-        // Create a map from original network ID to channel row ID for existing channels.
-        SparseArray<Uri> recordedProgramMap = new SparseArray<>();
+        IntLongMap recordedProgramMap = new IntLongMap();
         Uri recordedProgramsUri = TvContractCompat.RecordedPrograms.CONTENT_URI;
         String[] projection = {TvContractCompat.RecordedPrograms._ID, TvContractCompat.RecordedPrograms.COLUMN_INTERNAL_PROVIDER_DATA};
 
@@ -287,7 +254,7 @@ public class TvContractUtils {
             while (cursor != null && cursor.moveToNext()) {
                 long rowId = cursor.getLong(0);
                 int internalProviderData = cursor.getInt(1);
-                recordedProgramMap.put(internalProviderData, TvContractCompat.buildRecordedProgramUri(rowId));
+                recordedProgramMap.put(internalProviderData, rowId);
             }
         }
 
@@ -30,6 +30,7 @@ import ie.macinnes.tvheadend.Constants;
 import ie.macinnes.tvheadend.MiscUtils;
 import ie.macinnes.tvheadend.TvContractUtils;
 import ie.macinnes.tvheadend.sync.EpgSyncService;
+import ie.macinnes.tvheadend.sync.EpgSyncTask;
 
 public class AuthenticatorService extends Service {
 
@@ -69,7 +70,13 @@ public class AuthenticatorService extends Service {
 
                     // Discard the previously saved last EPG update stamp
                     SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(getBaseContext().getApplicationContext());
-                    sharedPreferences.edit().remove(Constants.KEY_EPG_LAST_UPDATE).apply();
+                    sharedPreferences.edit()
+                            .remove(Constants.KEY_EPG_LAST_UPDATE)
+                            .remove(Constants.KEY_EPG_LAST_SWEEP)
+                            .apply();
+
+                    // And the local copy of its EPG
+                    EpgSyncTask.deleteSnapshot(getApplicationContext());
                 }
             }
         }
@@ -18,7 +18,6 @@ package ie.macinnes.tvheadend.player;
 
 import android.content.Context;
 import android.util.Log;
-import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 
@@ -27,7 +26,6 @@ import com.google.android.exoplayer2.extractor.Extractor;
 import com.google.android.exoplayer2.extractor.ExtractorInput;
 import com.google.android.exoplayer2.extractor.ExtractorOutput;
 import com.google.android.exoplayer2.extractor.PositionHolder;
-import com.google.android.exoplayer2.extractor.SeekMap;
 import com.google.android.exoplayer2.util.ParsableByteArray;
 
 import java.io.ByteArrayInputStream;
@@ -37,6 +35,7 @@ import java.util.Arrays;
 
 import ie.macinnes.htsp.HtspMessage;
 import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.player.reader.Muxpkt;
 import ie.macinnes.tvheadend.player.reader.StreamReader;
 import ie.macinnes.tvheadend.player.reader.StreamReadersFactory;
 
@@ -45,29 +44,38 @@ class HtspExtractor implements Extractor {
 
     private static final String TAG = HtspExtractor.class.getName();
 
-    private class HtspSeekMap implements SeekMap {
-        @Override
-        public boolean isSeekable() {
-            return true;
-        }
-
-        @Override
-        public long getDurationUs() {
-            return C.TIME_UNSET;
-        }
-
-        @Override
-        public SeekPoints getSeekPoints(long timeUs) {
-            return null;
-        }
-
-    }
-
     private final Context mContext;
     private ExtractorOutput mOutput;
-    private final SparseArray<StreamReader> mStreamReaders = new SparseArray<>();
-
-    private final byte[] mRawBytes = new byte[1024 * 1024];
+    private final HtspSeekMap mSeekMap = new HtspSeekMap();
+    // Indexed by stream index, which TVHeadend numbers from 1
+    private StreamReader[] mStreamReaders = new StreamReader[0];
+    // The stream type each track was last fed from, or null for indexes without a track. The set
+    // of tracks is fixed once endTracks() has been called.
+    private String[] mStreamTypes;
+    // The track type each track was created with, as reported by its first StreamReader
+    private int[] mTrackTypes;
+    // The stream whose keyframes are indexed for seeking, the first video stream
+    private int mSeekStreamIndex = C.INDEX_UNSET;
+
+    // Anything larger than this can only be a corrupt frame length
+    private static final int MAX_FRAME_SIZE = 8 * 1024 * 1024;
+
+    // A frame's sync word, length and type byte
+    private static final int FRAME_PREFIX_SIZE = HtspSubscriptionDataSource.FRAME_HEADER_SIZE + 1;
+
+    // The frame being read. Frames may arrive over any number of read() calls, so what we've
+    // read so far is kept here until the frame is complete.
+    private final ParsableByteArray mFrameHeader = new ParsableByteArray(FRAME_PREFIX_SIZE);
+    private int mFrameHeaderBytesRead = 0;
+    private int mFrameType;
+    private byte[] mFrame = new byte[64 * 1024];
+    private int mFrameLength = C.LENGTH_UNSET;
+    private int mFrameBytesRead = 0;
+    // Set while we're hunting for a valid frame header, after losing our place in the stream
+    private boolean mResyncing = false;
+
+    private final ParsableByteArray mFrameData = new ParsableByteArray();
+    private final Muxpkt mMuxpkt = new Muxpkt();
 
     public HtspExtractor(Context context) {
         mContext = context;
@@ -90,38 +98,85 @@ class HtspExtractor implements Extractor {
     public void init(ExtractorOutput output) {
         Log.i(TAG, "Initializing HTSP Extractor");
         mOutput = output;
-        mOutput.seekMap(new HtspSeekMap());
+        mOutput.seekMap(mSeekMap);
     }
 
     @Override
     public int read(ExtractorInput input, PositionHolder seekPosition) throws IOException, InterruptedException {
-        int bytesRead = input.read(mRawBytes, 0, mRawBytes.length);
-        if (Constants.DEBUG)
-            Log.v(TAG, "Read " + bytesRead + " bytes");
+        if (input.getPosition() == 0) {
+            // The stream header was only needed by sniff()
+            input.skipFully(HtspSubscriptionDataSource.HEADER.length);
+        }
 
-        ObjectInputStream objectInput = null;
+        if (mFrameLength == C.LENGTH_UNSET) {
+            final int bytesRead = input.read(mFrameHeader.data, mFrameHeaderBytesRead,
+                    FRAME_PREFIX_SIZE - mFrameHeaderBytesRead);
+            if (bytesRead == C.RESULT_END_OF_INPUT) {
+                return RESULT_END_OF_INPUT;
+            }
 
-        try (
-                // N.B. Don't add the objectInput to this bit, it breaks stuff
-                ByteArrayInputStream inputStream = new ByteArrayInputStream(mRawBytes, 0, bytesRead)
-        ) {
-            while (inputStream.available() > 0) {
-                objectInput = new ObjectInputStream(inputStream);
-                handleMessage((HtspMessage) objectInput.readUnshared());
+            mFrameHeaderBytesRead += bytesRead;
+            if (mFrameHeaderBytesRead < FRAME_PREFIX_SIZE) {
+                return RESULT_CONTINUE;
             }
-        } catch (IOException e) {
-            // TODO: This is a problem, and returning RESULT_CONTINUE is a hack... I think?
-            Log.w(TAG, "Caught IOException, returning RESULT_CONTINUE");
-            return RESULT_CONTINUE;
-        } catch (ClassNotFoundException e) {
-            Log.w(TAG, "Class Not Found");
-        } finally {
-            try {
-                if (objectInput != null) {
-                    objectInput.close();
+
+            mFrameHeader.setPosition(0);
+            final int frameSync = mFrameHeader.readInt();
+            final int frameLength = mFrameHeader.readInt();
+            final int frameType = mFrameHeader.readUnsignedByte();
+
+            if (!isValidFrameHeader(frameSync, frameLength, frameType)) {
+                // Slide along a byte at a time until we find the next sync word followed by a
+                // plausible length and type, rather than failing playback
+                if (!mResyncing) {
+                    Log.w(TAG, "Invalid HTSP frame header, sync: " + Integer.toHexString(frameSync)
+                            + ", length: " + frameLength + ", type: " + frameType + ", resyncing");
+                    mResyncing = true;
                 }
-            } catch (IOException ex) {
-                // Ignore
+                System.arraycopy(mFrameHeader.data, 1, mFrameHeader.data, 0, FRAME_PREFIX_SIZE - 1);
+                mFrameHeaderBytesRead = FRAME_PREFIX_SIZE - 1;
+                return RESULT_CONTINUE;
+            }
+
+            if (mResyncing) {
+                Log.i(TAG, "Resynced to the HTSP frames");
+                mResyncing = false;
+            }
+
+            // The type byte has been read already
+            final int bodyLength = frameLength - 1;
+            if (bodyLength > mFrame.length) {
+                mFrame = new byte[Math.max(bodyLength, mFrame.length * 2)];
+            }
+
+            mFrameType = frameType;
+            mFrameLength = bodyLength;
+            mFrameBytesRead = 0;
+        }
+
+        final int bytesRead = input.read(mFrame, mFrameBytesRead, mFrameLength - mFrameBytesRead);
+        if (bytesRead == C.RESULT_END_OF_INPUT) {
+            return RESULT_END_OF_INPUT;
+        }
+
+        mFrameBytesRead += bytesRead;
+        if (mFrameBytesRead < mFrameLength) {
+            return RESULT_CONTINUE;
+        }
+
+        if (Constants.DEBUG)
+            Log.v(TAG, "Read " + mFrameLength + " byte frame");
+
+        mFrameData.reset(mFrame, mFrameLength);
+        final int frameType = mFrameType;
+        resetFrame();
+
+        if (frameType == HtspSubscriptionDataSource.FRAME_TYPE_MUXPKT) {
+            handleMuxpkt(mFrameData);
+        } else {
+            final HtspMessage message = readMessage(mFrameData);
+            if (message != null) {
+                handleMessage(message);
             }
         }
 
@@ -131,31 +186,95 @@ class HtspExtractor implements Extractor {
     @Override
     public void seek(long position, long timeUs) {
         Log.d(TAG, "Seeking HTSP Extractor to position:" + position + " and timeUs:" + timeUs);
+
+        // The data source starts afresh, on a frame boundary
+        resetFrame();
+        mResyncing = false;
     }
 
     @Override
     public void release() {
         Log.i(TAG, "Releasing HTSP Extractor");
-        mStreamReaders.clear();
+        for (StreamReader streamReader : mStreamReaders) {
+            if (streamReader != null) {
+                streamReader.release();
+            }
+        }
+        mStreamReaders = new StreamReader[0];
+        mStreamTypes = null;
+        mTrackTypes = null;
+        mSeekStreamIndex = C.INDEX_UNSET;
+        mSeekMap.reset();
     }
 
     // Internal Methods
+    private void resetFrame() {
+        mFrameHeaderBytesRead = 0;
+        mFrameLength = C.LENGTH_UNSET;
+        mFrameBytesRead = 0;
+    }
+
+    private static boolean isValidFrameHeader(int frameSync, int frameLength, int frameType) {
+        if (frameSync != HtspSubscriptionDataSource.FRAME_SYNC || frameLength > MAX_FRAME_SIZE) {
+            return false;
+        }
+
+        if (frameType == HtspSubscriptionDataSource.FRAME_TYPE_MUXPKT) {
+            return frameLength >= 1 + HtspSubscriptionDataSource.MUXPKT_FIELDS_SIZE;
+        } else if (frameType == HtspSubscriptionDataSource.FRAME_TYPE_MESSAGE) {
+            return frameLength > 1;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return The message, or null if the frame was corrupt
+     */
+    private static HtspMessage readMessage(ParsableByteArray frameData) {
+        try (ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(
+                frameData.data, frameData.getPosition(), frameData.bytesLeft()))) {
+            return (HtspMessage) objectInput.readUnshared();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            Log.w(TAG, "Failed to read HTSP message frame, dropping it", e);
+            return null;
+        }
+    }
+
     private void handleMessage(@NonNull final HtspMessage message) {
         final String method = message.getString("method");
 
         if (method.equals("subscriptionStart")) {
             handleSubscriptionStart(message);
-        } else if (method.equals("muxpkt")) {
-            handleMuxpkt(message);
+        } else if (method.equals("timeshiftStatus")) {
+            handleTimeshiftStatus(message);
         }
     }
 
     private void handleSubscriptionStart(@NonNull final HtspMessage message) {
+        final HtspMessage[] streams = message.getHtspMessageArray("streams");
+
+        if (mStreamTypes == null) {
+            createStreamReaders(streams);
+        } else {
+            updateStreamReaders(streams);
+        }
+    }
+
+    private void createStreamReaders(@NonNull final HtspMessage[] streams) {
         Log.i(TAG, "Handling Subscription Start");
 
         StreamReadersFactory streamReadersFactory = new StreamReadersFactory(mContext);
 
-        for (HtspMessage stream : message.getHtspMessageArray("streams")) {
+        int maxStreamIndex = -1;
+        for (HtspMessage stream : streams) {
+            maxStreamIndex = Math.max(maxStreamIndex, stream.getInteger("index"));
+        }
+        mStreamReaders = new StreamReader[maxStreamIndex + 1];
+        mStreamTypes = new String[maxStreamIndex + 1];
+        mTrackTypes = new int[maxStreamIndex + 1];
+
+        for (HtspMessage stream : streams) {
             final int streamIndex = stream.getInteger("index");
             final String streamType = stream.getString("type");
 
@@ -163,7 +282,13 @@ class HtspExtractor implements Extractor {
             if (streamReader != null) {
                 Log.d(TAG, "Creating StreamReader for " + streamType + " stream at index " + streamIndex);
                 streamReader.createTracks(stream, mOutput);
-                mStreamReaders.put(streamIndex, streamReader);
+                mStreamReaders[streamIndex] = streamReader;
+                mStreamTypes[streamIndex] = streamType;
+                mTrackTypes[streamIndex] = streamReader.getTrackType();
+
+                if (mSeekStreamIndex == C.INDEX_UNSET && streamReader.getTrackType() == C.TRACK_TYPE_VIDEO) {
+                    mSeekStreamIndex = streamIndex;
+                }
             } else {
                 Log.d(TAG, "Discarding stream at index " + streamIndex + ", no suitable StreamReader");
             }
@@ -173,7 +298,77 @@ class HtspExtractor implements Extractor {
         mOutput.endTracks();
     }
 
-    private void handleMuxpkt(@NonNull final HtspMessage message) {
+    private void updateStreamReaders(@NonNull final HtspMessage[] streams) {
+        // TVHeadend re-sends subscriptionStart when a channel changes resolution or audio layout,
+        // and after a skip. The tracks were fixed by endTracks(), so rather than re-preparing
+        // the player, streams are matched back onto the tracks we already have and the decoders
+        // only see a Format change where something actually changed.
+        Log.i(TAG, "Handling repeated Subscription Start");
+
+        StreamReadersFactory streamReadersFactory = new StreamReadersFactory(mContext);
+        final StreamReader[] streamReaders = new StreamReader[mStreamReaders.length];
+
+        for (HtspMessage stream : streams) {
+            final int streamIndex = stream.getInteger("index");
+            final String streamType = stream.getString("type");
+
+            if (streamIndex < 0 || streamIndex >= mStreamTypes.length || mStreamTypes[streamIndex] == null) {
+                Log.d(TAG, "Discarding new stream at index " + streamIndex + ", tracks have already ended");
+                continue;
+            }
+
+            final StreamReader currentStreamReader = mStreamReaders[streamIndex];
+
+            if (currentStreamReader != null && streamType.equals(mStreamTypes[streamIndex])) {
+                if (Constants.DEBUG)
+                    Log.v(TAG, "Reusing StreamReader for " + streamType + " stream at index " + streamIndex);
+                currentStreamReader.updateTracks(stream);
+                streamReaders[streamIndex] = currentStreamReader;
+                mStreamReaders[streamIndex] = null;
+                continue;
+            }
+
+            final StreamReader streamReader = streamReadersFactory.createStreamReader(streamType);
+
+            if (streamReader != null && streamReader.getTrackType() == mTrackTypes[streamIndex]) {
+                // A new codec for the same kind of track, output.track() hands the new reader the
+                // existing track for this index
+                Log.d(TAG, "Replacing StreamReader for " + mStreamTypes[streamIndex] + " stream at index "
+                        + streamIndex + " with one for " + streamType);
+                streamReader.createTracks(stream, mOutput);
+                streamReaders[streamIndex] = streamReader;
+                mStreamTypes[streamIndex] = streamType;
+            } else {
+                Log.w(TAG, "Discarding " + streamType + " stream at index " + streamIndex
+                        + ", its track was created for " + mStreamTypes[streamIndex]);
+                if (streamReader != null) {
+                    streamReader.release();
+                }
+            }
+        }
+
+        // Anything left over was replaced, or is no longer part of the subscription
+        for (StreamReader streamReader : mStreamReaders) {
+            if (streamReader != null) {
+                streamReader.release();
+            }
+        }
+
+        mStreamReaders = streamReaders;
+    }
+
+    private void handleTimeshiftStatus(@NonNull final HtspMessage message) {
+//        full               u32   required   Indicates whether the buffer is full and thus data will be thrown away.
+//        shift              s64   required   Current position (µs) relative to live.
+//        start              s64   optional   PTS (µs) of the first frame in the buffer.
+//        end                s64   optional   PTS (µs) of the last frame in the buffer.
+
+        mSeekMap.onTimeshiftStatus(
+                message.getLong("start", C.TIME_UNSET),
+                message.getLong("end", C.TIME_UNSET));
+    }
+
+    private void handleMuxpkt(@NonNull final ParsableByteArray frameData) {
 //        subscriptionId     u32   required   Subscription ID.
 //        frametype          u32   required   Type of frame as ASCII value: 'I', 'P', 'B'
 //        stream             u32   required   Stream index. Corresponds to the streams reported in the subscriptionStart message.
@@ -181,15 +376,28 @@ class HtspExtractor implements Extractor {
 //        pts                s64   optional   Presentation Time Stamp in µs.
 //        duration           u32   required   Duration of frame in µs.
 //        payload            bin   required   Actual frame data.
+//
+// See HtspSubscriptionDataSource.FRAME_TYPE_MUXPKT for how these are framed.
 
-        final int streamIndex = message.getInteger("stream");
+        final int streamIndex = frameData.readInt();
 
-        final StreamReader streamReader = mStreamReaders.get(streamIndex);
-        if (streamReader == null) {
+        if (streamIndex < 0 || streamIndex >= mStreamReaders.length || mStreamReaders[streamIndex] == null) {
             // Not a stream we care about, move on.
             return;
         }
 
-        streamReader.consume(message);
+        final long pts = frameData.readLong();
+        final long dts = frameData.readLong();
+        final int duration = frameData.readInt();
+        final int frameType = frameData.readInt();
+
+        mMuxpkt.set(streamIndex, pts, dts, duration, frameType,
+                frameData.data, frameData.getPosition(), frameData.bytesLeft());
+
+        final boolean keyFrame = mStreamReaders[streamIndex].consume(mMuxpkt);
+
+        if (keyFrame && streamIndex == mSeekStreamIndex && pts != C.TIME_UNSET) {
+            mSeekMap.addKeyFrame(pts);
+        }
     }
 }
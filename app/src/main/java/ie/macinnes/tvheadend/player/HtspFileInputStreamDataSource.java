@@ -19,14 +19,17 @@ package ie.macinnes.tvheadend.player;
 import android.content.Context;
 import android.util.Log;
 
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.upstream.DataSpec;
 
 import org.acra.ACRA;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import ie.macinnes.htsp.HtspFileInputStream;
+import ie.macinnes.htsp.HtspParallelFileInputStream;
 import ie.macinnes.htsp.SimpleHtspConnection;
 import ie.macinnes.tvheadend.Application;
 
@@ -42,25 +45,29 @@ public class HtspFileInputStreamDataSource extends HtspDataSource {
 
         private final Context mContext;
         private final SimpleHtspConnection mConnection;
+        private final boolean mParallelFetchEnabled;
 
-        public Factory(Context context, SimpleHtspConnection connection) {
+        public Factory(Context context, SimpleHtspConnection connection, boolean parallelFetchEnabled) {
             mContext = context;
             mConnection = connection;
+            mParallelFetchEnabled = parallelFetchEnabled;
         }
 
         @Override
         public HtspDataSource createDataSourceInternal() {
-            return new HtspFileInputStreamDataSource(mContext, mConnection);
+            return new HtspFileInputStreamDataSource(mContext, mConnection, mParallelFetchEnabled);
         }
 
     }
 
     private final int mDataSourceNumber;
-    private HtspFileInputStream mHtspFileInputStream;
+    private final boolean mParallelFetchEnabled;
+    private InputStream mHtspFileInputStream;
 
-    private HtspFileInputStreamDataSource(Context context, SimpleHtspConnection connection) {
+    private HtspFileInputStreamDataSource(Context context, SimpleHtspConnection connection, boolean parallelFetchEnabled) {
         super(context, connection);
 
+        mParallelFetchEnabled = parallelFetchEnabled;
         mDataSourceNumber = sDataSourceCount.incrementAndGet();
 
         Log.d(TAG, "New HtspSubscriptionDataSource instantiated (" + mDataSourceNumber + ")");
@@ -98,9 +105,24 @@ public class HtspFileInputStreamDataSource extends HtspDataSource {
 
         String fileName = "dvrfile" + dataSpec.uri.getPath();
 
-        mHtspFileInputStream = new HtspFileInputStream(mConnection, fileName);
+        if (mParallelFetchEnabled) {
+            // Fetch several ranges of the recording at once, starting from the requested position
+            HtspParallelFileInputStream inputStream = new HtspParallelFileInputStream(
+                    mConnection, fileName, dataSpec.position,
+                    HtspParallelFileInputStream.DEFAULT_MAX_CONCURRENT_RANGES);
+            mHtspFileInputStream = inputStream;
 
-        return mHtspFileInputStream.getFileSize();
+            if (inputStream.getFileSize() == -1) {
+                return C.LENGTH_UNSET;
+            }
+
+            return inputStream.getFileSize() - dataSpec.position;
+        }
+
+        HtspFileInputStream inputStream = new HtspFileInputStream(mConnection, fileName);
+        mHtspFileInputStream = inputStream;
+
+        return inputStream.getFileSize();
     }
 
     @Override
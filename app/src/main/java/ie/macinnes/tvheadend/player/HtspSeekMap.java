@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.SeekPoint;
+
+import java.util.Arrays;
+
+/**
+ * A SeekMap over a subscription's timeshift buffer.
+ * <p>
+ * Positions are muxpkt PTS in microseconds, which is both what ExoPlayer plays against and what
+ * subscriptionSkip takes, so a SeekPoint's position is handed straight to the data source. The
+ * seekable window comes from timeshiftStatus, and seeks are clamped to it and snapped to the PTS
+ * of the video keyframes seen so far, so TVHeadend starts sending from a frame the decoder can
+ * start on. The stream is live, so there's no duration; the window is only exposed through the
+ * seek points.
+ * <p>
+ * Written to from the loading thread, read from the playback thread.
+ */
+class HtspSeekMap implements SeekMap {
+    // An hour of keyframes at 2 per second, grown if the timeshift buffer is larger
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    private long mStartPts = C.TIME_UNSET;
+    private long mEndPts = C.TIME_UNSET;
+
+    // Sorted keyframe PTS, live entries are [mKeyFramesStart, mKeyFramesEnd)
+    private long[] mKeyFrames = new long[INITIAL_CAPACITY];
+    private int mKeyFramesStart = 0;
+    private int mKeyFramesEnd = 0;
+
+    @Override
+    public boolean isSeekable() {
+        return true;
+    }
+
+    @Override
+    public long getDurationUs() {
+        // The end of the window is the moving live edge, not a duration
+        return C.TIME_UNSET;
+    }
+
+    @Override
+    public synchronized SeekPoints getSeekPoints(long timeUs) {
+        if (mStartPts != C.TIME_UNSET) {
+            timeUs = Math.max(timeUs, mStartPts);
+        }
+        if (mEndPts != C.TIME_UNSET) {
+            timeUs = Math.min(timeUs, mEndPts);
+        }
+
+        final int index = Arrays.binarySearch(mKeyFrames, mKeyFramesStart, mKeyFramesEnd, timeUs);
+        if (index >= 0) {
+            return new SeekPoints(new SeekPoint(timeUs, timeUs));
+        }
+
+        // The keyframes either side of the requested time, the SeekParameters pick between them
+        final int insertionPoint = -index - 1;
+        if (insertionPoint == mKeyFramesStart) {
+            return new SeekPoints(new SeekPoint(timeUs, timeUs));
+        }
+
+        final long before = mKeyFrames[insertionPoint - 1];
+        if (insertionPoint == mKeyFramesEnd) {
+            return new SeekPoints(new SeekPoint(before, before));
+        }
+
+        final long after = mKeyFrames[insertionPoint];
+        return new SeekPoints(new SeekPoint(before, before), new SeekPoint(after, after));
+    }
+
+    /**
+     * Updates the seekable window from a timeshiftStatus, dropping keyframes that have fallen out
+     * of the timeshift buffer.
+     *
+     * @param startPts The PTS of the oldest buffered frame, or C.TIME_UNSET
+     * @param endPts The PTS of the newest buffered frame, or C.TIME_UNSET
+     */
+    synchronized void onTimeshiftStatus(long startPts, long endPts) {
+        mStartPts = startPts;
+        mEndPts = endPts;
+
+        if (startPts == C.TIME_UNSET) {
+            return;
+        }
+
+        while (mKeyFramesStart < mKeyFramesEnd && mKeyFrames[mKeyFramesStart] < startPts) {
+            mKeyFramesStart++;
+        }
+    }
+
+    /**
+     * Records the PTS of a video keyframe. Keyframes normally arrive in order, after a backwards
+     * seek they're replayed and the ones we already have are skipped.
+     */
+    synchronized void addKeyFrame(long pts) {
+        if (mKeyFramesEnd > mKeyFramesStart && pts <= mKeyFrames[mKeyFramesEnd - 1]) {
+            final int index = Arrays.binarySearch(mKeyFrames, mKeyFramesStart, mKeyFramesEnd, pts);
+            if (index >= 0) {
+                return;
+            }
+            insertKeyFrame(-index - 1, pts);
+            return;
+        }
+
+        insertKeyFrame(mKeyFramesEnd, pts);
+    }
+
+    synchronized void reset() {
+        mStartPts = C.TIME_UNSET;
+        mEndPts = C.TIME_UNSET;
+        mKeyFramesStart = 0;
+        mKeyFramesEnd = 0;
+    }
+
+    // Internal Methods
+    private void insertKeyFrame(int index, long pts) {
+        if (mKeyFramesEnd == mKeyFrames.length) {
+            // Reclaim the space left by dropped keyframes before growing
+            final int count = mKeyFramesEnd - mKeyFramesStart;
+            final long[] keyFrames = count > mKeyFrames.length / 2
+                    ? new long[mKeyFrames.length * 2] : mKeyFrames;
+            System.arraycopy(mKeyFrames, mKeyFramesStart, keyFrames, 0, count);
+            index -= mKeyFramesStart;
+            mKeyFrames = keyFrames;
+            mKeyFramesStart = 0;
+            mKeyFramesEnd = count;
+        }
+
+        System.arraycopy(mKeyFrames, index, mKeyFrames, index + 1, mKeyFramesEnd - index);
+        mKeyFrames[index] = pts;
+        mKeyFramesEnd++;
+    }
+}
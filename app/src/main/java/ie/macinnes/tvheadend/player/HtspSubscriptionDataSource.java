@@ -18,6 +18,7 @@ package ie.macinnes.tvheadend.player;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -42,13 +43,26 @@ import ie.macinnes.htsp.tasks.Subscriber;
 import ie.macinnes.tvheadend.Application;
 import ie.macinnes.tvheadend.Constants;
 import ie.macinnes.tvheadend.R;
+import ie.macinnes.tvheadend.player.reader.FormatCache;
 
 public class HtspSubscriptionDataSource extends HtspDataSource implements Subscriber.Listener {
 
     public static final byte[] HEADER = new byte[]{0, 1, 0, 1, 0, 1, 0, 1};
+    // After the HEADER, each message is framed by FRAME_SYNC and its length, both big endian ints,
+    // followed by a frame type byte. The length covers the type byte and the body.
+    public static final int FRAME_SYNC = 0x48545346;
+    public static final int FRAME_HEADER_SIZE = 8;
+    // A serialized HtspMessage
+    public static final byte FRAME_TYPE_MESSAGE = 0;
+    // A muxpkt's fields: stream (int), pts (long), dts (long), duration (int), frametype (int),
+    // then the payload. Missing timestamps are C.TIME_UNSET, a missing frametype is -1.
+    public static final byte FRAME_TYPE_MUXPKT = 1;
+    public static final int MUXPKT_FIELDS_SIZE = 28;
 
     private static final String TAG = HtspSubscriptionDataSource.class.getName();
     private static final int BUFFER_SIZE = 10 * 1024 * 1024;
+    // Gaps between packets larger than this are discontinuities (skips, pauses), not jitter
+    private static final long MAX_JITTER_SAMPLE_US = 1000000;
 
     private static final AtomicInteger sDataSourceCount = new AtomicInteger();
 
@@ -85,6 +99,14 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
 
     private boolean mIsOpen = false;
     private boolean mIsSubscribed = false;
+    private long mChannelId = FormatCache.INVALID_CHANNEL_ID;
+
+    // Interarrival jitter of one stream's packets, smoothed as RTP does (RFC 3550, 6.4.1)
+    private int mJitterStreamIndex = C.INDEX_UNSET;
+    private long mLastArrivalUs = C.TIME_UNSET;
+    private long mLastTimestampUs = C.TIME_UNSET;
+    private volatile long mJitterUs = 0;
+    private volatile long mQueueDelayUs = 0;
 
     private HtspSubscriptionDataSource(Context context, SimpleHtspConnection connection, String streamProfile) {
         super(context, connection);
@@ -153,10 +175,11 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
         Log.i(TAG, "Opening HtspSubscriptionDataSource (" + mDataSourceNumber + ")");
         mDataSpec = dataSpec;
 
+        final boolean reopening = mIsSubscribed;
         if (!mIsSubscribed) {
             try {
-                long channelId = Long.parseLong(dataSpec.uri.getPath().substring(1));
-                mSubscriber.subscribe(channelId, mStreamProfile, mTimeshiftPeriod);
+                mChannelId = Long.parseLong(dataSpec.uri.getPath().substring(1));
+                mSubscriber.subscribe(mChannelId, mStreamProfile, mTimeshiftPeriod);
                 mIsSubscribed = true;
             } catch (HtspNotConnectedException e) {
                 throw new IOException("Failed to open HtspSubscriptionDataSource, HTSP not connected (" + mDataSourceNumber + ")", e);
@@ -164,12 +187,29 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
         }
 
         long seekPosition = mDataSpec.position;
+
+        if (reopening) {
+            // The extractor drops any partly read frame whenever we're reopened, so whatever is
+            // left in the buffer has to go too. Messages are appended to the buffer under the
+            // lock, dropping what's there without it could leave half a frame behind.
+            mLock.lock();
+            try {
+                mBuffer.clear();
+                if (seekPosition == 0) {
+                    // Reading from the start again, the extractor expects the header first
+                    mBuffer.put(HEADER);
+                }
+                mBuffer.flip();
+                mLastArrivalUs = C.TIME_UNSET;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
         if (seekPosition > 0 && mTimeshiftPeriod > 0) {
             Log.d(TAG, "Seek to time PTS: " + seekPosition);
 
             mSubscriber.skip(seekPosition);
-            mBuffer.clear();
-            mBuffer.limit(0);
         }
 
         mIsOpen = true;
@@ -227,6 +267,12 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
     @Override
     public void onSubscriptionStart(@NonNull HtspMessage message) {
         Log.d(TAG, "Received subscriptionStart (" + mDataSourceNumber + ")");
+
+        // Lets the extractor's StreamReaders cache the Formats they build per channel
+        for (HtspMessage stream : message.getHtspMessageArray("streams")) {
+            stream.put(FormatCache.KEY_CHANNEL_ID, mChannelId);
+        }
+
         serializeMessageToBuffer(message);
     }
 
@@ -253,7 +299,7 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
 
     @Override
     public void onQueueStatus(@NonNull HtspMessage message) {
-        // Don't care about this event here
+        mQueueDelayUs = message.getLong("delay", 0);
     }
 
     @Override
@@ -263,12 +309,14 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
 
     @Override
     public void onTimeshiftStatus(@NonNull HtspMessage message) {
-        // Don't care about this event here
+        // The extractor's SeekMap takes the seekable window from these
+        serializeMessageToBuffer(message);
     }
 
     @Override
     public void onMuxpkt(@NonNull HtspMessage message) {
-        serializeMessageToBuffer(message);
+        updateJitter(message);
+        writeMuxpktToBuffer(message);
     }
 
     // HtspDataSource Methods
@@ -334,7 +382,72 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
 
     }
 
+    /**
+     * @return The smoothed interarrival jitter of muxpkts, in microseconds
+     */
+    public long getJitterUs() {
+        return mJitterUs;
+    }
+
+    /**
+     * @return How far behind TVHeadend's send queue for this subscription is, in microseconds
+     */
+    public long getQueueDelayUs() {
+        return mQueueDelayUs;
+    }
+
     // Misc Internal Methods
+    private void updateJitter(@NonNull HtspMessage message) {
+        final int streamIndex = message.getInteger("stream");
+        if (mJitterStreamIndex == C.INDEX_UNSET) {
+            mJitterStreamIndex = streamIndex;
+        } else if (streamIndex != mJitterStreamIndex) {
+            return;
+        }
+
+        // DTS increases steadily, PTS jumps about with B frames
+        final long timestampUs = message.getLong("dts", message.getLong("pts", C.TIME_UNSET));
+        if (timestampUs == C.TIME_UNSET) {
+            return;
+        }
+
+        final long arrivalUs = SystemClock.elapsedRealtimeNanos() / 1000;
+
+        if (mLastArrivalUs != C.TIME_UNSET) {
+            final long transitUs = Math.abs((arrivalUs - mLastArrivalUs) - (timestampUs - mLastTimestampUs));
+            if (transitUs < MAX_JITTER_SAMPLE_US) {
+                mJitterUs += (transitUs - mJitterUs) / 16;
+            }
+        }
+
+        mLastArrivalUs = arrivalUs;
+        mLastTimestampUs = timestampUs;
+    }
+
+    private void writeMuxpktToBuffer(@NonNull HtspMessage message) {
+        final byte[] payload = message.getByteArray("payload");
+
+        mLock.lock();
+        try {
+            mBuffer.position(mBuffer.limit());
+            mBuffer.limit(mBuffer.capacity());
+
+            mBuffer.putInt(FRAME_SYNC);
+            mBuffer.putInt(1 + MUXPKT_FIELDS_SIZE + payload.length);
+            mBuffer.put(FRAME_TYPE_MUXPKT);
+            mBuffer.putInt(message.getInteger("stream"));
+            mBuffer.putLong(message.getLong("pts", C.TIME_UNSET));
+            mBuffer.putLong(message.getLong("dts", C.TIME_UNSET));
+            mBuffer.putInt(message.getInteger("duration", 0));
+            mBuffer.putInt(message.getInteger("frametype", -1));
+            mBuffer.put(payload);
+
+            mBuffer.flip();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
     private void serializeMessageToBuffer(@NonNull HtspMessage message) {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
 
@@ -348,6 +461,9 @@ public class HtspSubscriptionDataSource extends HtspDataSource implements Subscr
             mBuffer.position(mBuffer.limit());
             mBuffer.limit(mBuffer.capacity());
 
+            mBuffer.putInt(FRAME_SYNC);
+            mBuffer.putInt(1 + outputStream.size());
+            mBuffer.put(FRAME_TYPE_MESSAGE);
             mBuffer.put(outputStream.toByteArray());
 
             mBuffer.flip();
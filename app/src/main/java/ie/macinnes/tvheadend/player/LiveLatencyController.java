@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.PlaybackParameters;
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+
+import ie.macinnes.tvheadend.Constants;
+
+/**
+ * Keeps live playback near the LoadControl's target latency by nudging the playback speed.
+ * <p>
+ * Our distance from the live edge is what we have buffered plus the backlog in TVHeadend's send
+ * queue. When that drifts from the target, after a rebuffer or a stall, playback runs slightly
+ * fast or slow to converge on it again. The speed stays within a few percent and the pitch is
+ * held, so it's not audible. A deliberate timeshift offset isn't part of the distance, so this
+ * never undoes a pause.
+ * <p>
+ * Runs on the player's application thread.
+ */
+class LiveLatencyController implements Runnable {
+
+    private static final String TAG = LiveLatencyController.class.getName();
+
+    private static final long UPDATE_INTERVAL_MS = 1000;
+
+    private static final float MAX_SPEED_DEVIATION = 0.03f;
+    // Speeds are rounded to this, so small wobbles in the buffer don't reconfigure the audio sink
+    private static final float SPEED_STEP = 0.005f;
+    // Latency errors smaller than this are left alone
+    private static final long DEAD_BAND_US = 250000;
+    // The latency error at which the speed reaches the edge of the band
+    private static final long FULL_CORRECTION_US = 2000000;
+
+    private final Handler mHandler;
+    private final SimpleExoPlayer mExoPlayer;
+    private final TvheadendLoadControl mLoadControl;
+    private final HtspDataSource.Factory mDataSourceFactory;
+
+    private boolean mRunning = false;
+    private float mSpeed = 1f;
+
+    LiveLatencyController(Handler handler, SimpleExoPlayer exoPlayer, TvheadendLoadControl loadControl,
+                          HtspDataSource.Factory dataSourceFactory) {
+        mHandler = handler;
+        mExoPlayer = exoPlayer;
+        mLoadControl = loadControl;
+        mDataSourceFactory = dataSourceFactory;
+    }
+
+    void start() {
+        if (mRunning) {
+            return;
+        }
+
+        Log.d(TAG, "Starting live latency control");
+        mRunning = true;
+        setSpeed(1f);
+        mHandler.postDelayed(this, UPDATE_INTERVAL_MS);
+    }
+
+    /**
+     * Stops adjusting the speed, leaving it as it is for whoever takes over (e.g. trick play).
+     */
+    void stop() {
+        if (!mRunning) {
+            return;
+        }
+
+        Log.d(TAG, "Stopping live latency control");
+        mRunning = false;
+        mHandler.removeCallbacks(this);
+    }
+
+    @Override
+    public void run() {
+        if (!mRunning) {
+            return;
+        }
+
+        if (mExoPlayer.getPlayWhenReady() && mExoPlayer.getPlaybackState() == Player.STATE_READY) {
+            update();
+        }
+
+        mHandler.postDelayed(this, UPDATE_INTERVAL_MS);
+    }
+
+    // Internal Methods
+    private void update() {
+        long latencyUs = C.msToUs(mExoPlayer.getTotalBufferedDuration());
+
+        final HtspDataSource dataSource = mDataSourceFactory.getCurrentDataSource();
+        if (dataSource instanceof HtspSubscriptionDataSource) {
+            latencyUs += ((HtspSubscriptionDataSource) dataSource).getQueueDelayUs();
+        }
+
+        final long errorUs = latencyUs - mLoadControl.getLiveTargetLatencyUs();
+
+        float speed = 1f;
+        if (Math.abs(errorUs) > DEAD_BAND_US) {
+            final float correction = Math.max(-1f, Math.min(1f, errorUs / (float) FULL_CORRECTION_US));
+            speed = 1f + Math.round(correction * MAX_SPEED_DEVIATION / SPEED_STEP) * SPEED_STEP;
+        }
+
+        if (Constants.DEBUG)
+            Log.v(TAG, "Live latency: " + latencyUs + "us, error: " + errorUs + "us, speed: " + speed);
+
+        setSpeed(speed);
+    }
+
+    private void setSpeed(float speed) {
+        if (speed == mSpeed && mExoPlayer.getPlaybackParameters().speed == speed) {
+            return;
+        }
+
+        mSpeed = speed;
+        mExoPlayer.setPlaybackParameters(new PlaybackParameters(speed, 1f));
+    }
+}
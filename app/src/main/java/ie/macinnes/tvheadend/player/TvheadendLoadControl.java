@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player;
+
+import android.util.Log;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.DefaultLoadControl;
+import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.google.android.exoplayer2.upstream.Allocator;
+import com.google.android.exoplayer2.util.Util;
+
+/**
+ * A LoadControl with a low latency profile for live channels.
+ * <p>
+ * Recordings are handed to a DefaultLoadControl. Live channels only buffer a small target
+ * latency ahead of playback, widened by the jitter the subscription measures, with the sample
+ * queues held to a total memory target sized by the selected track types.
+ */
+class TvheadendLoadControl implements LoadControl {
+
+    private static final String TAG = TvheadendLoadControl.class.getName();
+
+    // How far the live target latency may stretch on a bad network
+    private static final long MAX_LIVE_TARGET_LATENCY_US = 5000000;
+    // Buffered media beyond the target latency before live loading pauses
+    private static final long LIVE_MAX_BUFFER_HEADROOM_US = 2000000;
+    // Jitter is a mean deviation, allow for a few of them
+    private static final int JITTER_MULTIPLIER = 4;
+
+    // Each selected track's share of the live sample queue memory target. The tracks all draw on
+    // the one allocator, so only their total is enforced, not each track's share.
+    private static final int LIVE_VIDEO_BUFFER_SHARE = 8 * 1024 * 1024;
+    private static final int LIVE_AUDIO_BUFFER_SHARE = 512 * 1024;
+    private static final int LIVE_TEXT_BUFFER_SHARE = 128 * 1024;
+    private static final int LIVE_OTHER_BUFFER_SHARE = 64 * 1024;
+
+    private final DefaultLoadControl mRecordingLoadControl;
+    private final HtspDataSource.Factory mLiveDataSourceFactory;
+    private final long mLiveMinTargetLatencyUs;
+
+    private volatile boolean mLive = false;
+    private int mLiveTargetBufferBytes;
+
+    /**
+     * @param recordingLoadControl Used for recordings, and provides the allocator for both modes
+     * @param liveDataSourceFactory Factory for the live subscription's data sources
+     * @param liveMinTargetLatencyMs The target latency on a perfect network
+     */
+    TvheadendLoadControl(DefaultLoadControl recordingLoadControl,
+                         HtspDataSource.Factory liveDataSourceFactory,
+                         int liveMinTargetLatencyMs) {
+        mRecordingLoadControl = recordingLoadControl;
+        mLiveDataSourceFactory = liveDataSourceFactory;
+        mLiveMinTargetLatencyUs = C.msToUs(liveMinTargetLatencyMs);
+    }
+
+    /**
+     * Switches between the live and recording profiles, call before preparing the new source.
+     */
+    void setLive(boolean live) {
+        Log.d(TAG, "Using the " + (live ? "live" : "recording") + " buffering profile");
+        mLive = live;
+    }
+
+    // LoadControl Methods
+    @Override
+    public void onPrepared() {
+        mRecordingLoadControl.onPrepared();
+    }
+
+    @Override
+    public void onTracksSelected(Renderer[] renderers, TrackGroupArray trackGroups,
+                                 TrackSelectionArray trackSelections) {
+        mRecordingLoadControl.onTracksSelected(renderers, trackGroups, trackSelections);
+
+        int targetBufferBytes = 0;
+        for (int i = 0; i < renderers.length; i++) {
+            if (trackSelections.get(i) != null) {
+                targetBufferBytes += getLiveBufferShare(renderers[i].getTrackType());
+            }
+        }
+        mLiveTargetBufferBytes = targetBufferBytes;
+    }
+
+    @Override
+    public void onStopped() {
+        mRecordingLoadControl.onStopped();
+    }
+
+    @Override
+    public void onReleased() {
+        mRecordingLoadControl.onReleased();
+    }
+
+    @Override
+    public Allocator getAllocator() {
+        return mRecordingLoadControl.getAllocator();
+    }
+
+    @Override
+    public long getBackBufferDurationUs() {
+        return mRecordingLoadControl.getBackBufferDurationUs();
+    }
+
+    @Override
+    public boolean retainBackBufferFromKeyframe() {
+        return mRecordingLoadControl.retainBackBufferFromKeyframe();
+    }
+
+    @Override
+    public boolean shouldContinueLoading(long bufferedDurationUs, float playbackSpeed) {
+        if (!mLive) {
+            return mRecordingLoadControl.shouldContinueLoading(bufferedDurationUs, playbackSpeed);
+        }
+
+        if (isLiveBufferFull()) {
+            return false;
+        }
+
+        final long maxBufferUs = Util.getMediaDurationForPlayoutDuration(
+                getLiveTargetLatencyUs() + LIVE_MAX_BUFFER_HEADROOM_US, playbackSpeed);
+        return bufferedDurationUs < maxBufferUs;
+    }
+
+    @Override
+    public boolean shouldStartPlayback(long bufferedDurationUs, float playbackSpeed, boolean rebuffering) {
+        if (!mLive) {
+            return mRecordingLoadControl.shouldStartPlayback(bufferedDurationUs, playbackSpeed, rebuffering);
+        }
+
+        bufferedDurationUs = Util.getPlayoutDurationForMediaDuration(bufferedDurationUs, playbackSpeed);
+
+        // Having just run dry, the network is worse than we thought, so start with more in hand
+        long targetLatencyUs = getLiveTargetLatencyUs();
+        if (rebuffering) {
+            targetLatencyUs = Math.min(targetLatencyUs * 2, MAX_LIVE_TARGET_LATENCY_US);
+        }
+
+        return bufferedDurationUs >= targetLatencyUs || isLiveBufferFull();
+    }
+
+    /**
+     * @return How far behind the live edge live playback should sit, in microseconds. A backlog
+     * in TVHeadend's send queue counts against this, it doesn't widen it.
+     */
+    long getLiveTargetLatencyUs() {
+        long targetLatencyUs = mLiveMinTargetLatencyUs;
+
+        final HtspDataSource dataSource = mLiveDataSourceFactory.getCurrentDataSource();
+        if (dataSource instanceof HtspSubscriptionDataSource) {
+            targetLatencyUs += JITTER_MULTIPLIER * ((HtspSubscriptionDataSource) dataSource).getJitterUs();
+        }
+
+        return Math.min(targetLatencyUs, MAX_LIVE_TARGET_LATENCY_US);
+    }
+
+    // Internal Methods
+    private boolean isLiveBufferFull() {
+        return getAllocator().getTotalBytesAllocated() >= mLiveTargetBufferBytes;
+    }
+
+    private static int getLiveBufferShare(int trackType) {
+        switch (trackType) {
+            case C.TRACK_TYPE_VIDEO:
+                return LIVE_VIDEO_BUFFER_SHARE;
+            case C.TRACK_TYPE_AUDIO:
+                return LIVE_AUDIO_BUFFER_SHARE;
+            case C.TRACK_TYPE_TEXT:
+                return LIVE_TEXT_BUFFER_SHARE;
+            default:
+                return LIVE_OTHER_BUFFER_SHARE;
+        }
+    }
+}
@@ -46,7 +46,6 @@ import com.google.android.exoplayer2.DefaultLoadControl;
 import com.google.android.exoplayer2.ExoPlaybackException;
 import com.google.android.exoplayer2.ExoPlayer;
 import com.google.android.exoplayer2.Format;
-import com.google.android.exoplayer2.LoadControl;
 import com.google.android.exoplayer2.PlaybackParameters;
 import com.google.android.exoplayer2.Player;
 import com.google.android.exoplayer2.RendererCapabilities;
@@ -117,7 +116,8 @@ public class TvheadendPlayer implements Player.EventListener {
     private SimpleExoPlayer mExoPlayer;
     private RenderersFactory mRenderersFactory;
     private TvheadendTrackSelector mTrackSelector;
-    private LoadControl mLoadControl;
+    private TvheadendLoadControl mLoadControl;
+    private LiveLatencyController mLiveLatencyController;
     private EventLogger mEventLogger;
     private HtspDataSource.Factory mHtspSubscriptionDataSourceFactory;
     private HtspDataSource.Factory mHtspFileInputStreamDataSourceFactory;
@@ -150,8 +150,11 @@ public class TvheadendPlayer implements Player.EventListener {
         mCurrentChannelUri = channelUri;
 
         // Create the media source
-        if (channelUri.getHost().equals("channel")) {
+        final boolean live = channelUri.getHost().equals("channel");
+        mLoadControl.setLive(live);
+        if (live) {
             buildHtspChannelMediaSource(channelUri);
+            mLiveLatencyController.start();
         } else {
             buildHtspRecordingMediaSource(channelUri);
         }
@@ -278,11 +281,19 @@ public class TvheadendPlayer implements Player.EventListener {
 
         if (mDataSource != null) {
             mDataSource.setSpeed(translatedSpeed);
-            mExoPlayer.setPlaybackParameters(new PlaybackParameters(translatedSpeed, 0));
+
+            // At normal speed on a channel the latency controller owns the speed, trick play otherwise
+            if (translatedSpeed == 100 && isLive()) {
+                mLiveLatencyController.start();
+            } else {
+                mLiveLatencyController.stop();
+                mExoPlayer.setPlaybackParameters(new PlaybackParameters(translatedSpeed, 0));
+            }
         }
     }
 
     private void stop() {
+        mLiveLatencyController.stop();
         mExoPlayer.stop();
         mTrackSelector.setParameters(mTrackSelector.buildUponParameters().clearSelectionOverrides());
         mHtspSubscriptionDataSourceFactory.releaseCurrentDataSource();
@@ -398,7 +409,22 @@ public class TvheadendPlayer implements Player.EventListener {
     }
 
     // Misc Internal Methods
+    private boolean isLive() {
+        return mCurrentChannelUri != null && mCurrentChannelUri.getHost().equals("channel");
+    }
+
     private void buildExoPlayer() {
+        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext.getApplicationContext());
+        final String streamProfile = sharedPreferences.getString(Constants.KEY_HTSP_STREAM_PROFILE, mContext.getResources().getString(R.string.pref_default_htsp_stream_profile));
+        final boolean parallelRecordingFetchEnabled = sharedPreferences.getBoolean(
+                Constants.KEY_PARALLEL_RECORDING_FETCH_ENABLED,
+                mContext.getResources().getBoolean(R.bool.pref_default_parallel_recording_fetch_enabled)
+        );
+
+        // Produces DataSource instances through which media data is loaded.
+        mHtspSubscriptionDataSourceFactory = new HtspSubscriptionDataSource.Factory(mContext, mConnection, streamProfile);
+        mHtspFileInputStreamDataSourceFactory = new HtspFileInputStreamDataSource.Factory(mContext, mConnection, parallelRecordingFetchEnabled);
+
         mRenderersFactory = new TvheadendRenderersFactory(mContext);
         mTrackSelector = buildTrackSelector();
         mLoadControl = buildLoadControl();
@@ -410,18 +436,14 @@ public class TvheadendPlayer implements Player.EventListener {
 
         mExoPlayer.addListener(this);
 
+        mLiveLatencyController = new LiveLatencyController(
+                mHandler, mExoPlayer, mLoadControl, mHtspSubscriptionDataSourceFactory);
+
         // Add the EventLogger
         mEventLogger = new EventLogger(mTrackSelector);
         mExoPlayer.addListener(mEventLogger);
         mExoPlayer.addAnalyticsListener(mEventLogger);
 
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext.getApplicationContext());
-        final String streamProfile = sharedPreferences.getString(Constants.KEY_HTSP_STREAM_PROFILE, mContext.getResources().getString(R.string.pref_default_htsp_stream_profile));
-
-        // Produces DataSource instances through which media data is loaded.
-        mHtspSubscriptionDataSourceFactory = new HtspSubscriptionDataSource.Factory(mContext, mConnection, streamProfile);
-        mHtspFileInputStreamDataSourceFactory = new HtspFileInputStreamDataSource.Factory(mContext, mConnection);
-
         // Produces Extractor instances for parsing the media data.
         mExtractorsFactory = new TvheadendExtractorsFactory(mContext);
     }
@@ -442,7 +464,7 @@ public class TvheadendPlayer implements Player.EventListener {
         return trackSelector;
     }
 
-    private LoadControl buildLoadControl() {
+    private TvheadendLoadControl buildLoadControl() {
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext.getApplicationContext());
         int bufferForPlaybackMs = Integer.parseInt(
                 sharedPreferences.getString(
@@ -450,13 +472,16 @@ public class TvheadendPlayer implements Player.EventListener {
                         mContext.getResources().getString(R.string.pref_default_buffer_playback_ms)
                 )
         );
-        return new DefaultLoadControl.Builder()
+        DefaultLoadControl recordingLoadControl = new DefaultLoadControl.Builder()
                 .setBufferDurationsMs(
                         DefaultLoadControl.DEFAULT_MIN_BUFFER_MS,
                         DefaultLoadControl.DEFAULT_MAX_BUFFER_MS,
                         bufferForPlaybackMs,
                         DefaultLoadControl.DEFAULT_BUFFER_FOR_PLAYBACK_AFTER_REBUFFER_MS)
                 .createDefaultLoadControl();
+
+        // Live playback aims to stay bufferForPlaybackMs behind broadcast, on a good network
+        return new TvheadendLoadControl(recordingLoadControl, mHtspSubscriptionDataSourceFactory, bufferForPlaybackMs);
     }
 
     private void buildHtspChannelMediaSource(Uri channelUri) {
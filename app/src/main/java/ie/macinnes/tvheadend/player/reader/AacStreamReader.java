@@ -22,8 +22,6 @@ import androidx.annotation.NonNull;
 
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.Format;
-import com.google.android.exoplayer2.extractor.ExtractorOutput;
-import com.google.android.exoplayer2.extractor.TrackOutput;
 import com.google.android.exoplayer2.util.CodecSpecificDataUtil;
 import com.google.android.exoplayer2.util.MimeTypes;
 import com.google.android.exoplayer2.util.ParsableByteArray;
@@ -36,35 +34,30 @@ import ie.macinnes.tvheadend.TvhMappings;
 
 // See https://wiki.multimedia.cx/index.php?title=ADTS
 
-class AacStreamReader implements StreamReader {
+class AacStreamReader extends BaseStreamReader {
 
     private static final String TAG = AacStreamReader.class.getName();
 
     private static final int ADTS_HEADER_SIZE = 7;
     private static final int ADTS_CRC_SIZE = 2;
 
-    private TrackOutput mTrackOutput;
+    // Reused for every packet, sampleData() copies out of it before returning
+    private final ParsableByteArray mSampleData = new ParsableByteArray();
 
     AacStreamReader(Context context) {
     }
 
     @Override
-    public void createTracks(HtspMessage stream, ExtractorOutput output) {
-        final int streamIndex = stream.getInteger("index");
-        mTrackOutput = output.track(streamIndex, C.TRACK_TYPE_AUDIO);
-        mTrackOutput.format(buildFormat(streamIndex, stream));
-    }
-
-    @Override
-    public void consume(@NonNull HtspMessage message) {
-        final long pts = message.getLong("pts");
-        final byte[] payload = message.getByteArray("payload");
+    public boolean consume(@NonNull Muxpkt muxpkt) {
+        final long pts = muxpkt.getPts();
+        final byte[] payload = muxpkt.getPayload();
+        final int payloadOffset = muxpkt.getPayloadOffset();
 
-        final ParsableByteArray pba = new ParsableByteArray(payload);
+        muxpkt.wrapPayload(mSampleData);
 
         int skipLength;
 
-        if (hasCrc(payload[1])) {
+        if (hasCrc(payload[payloadOffset + 1])) {
             // Have a CRC
             skipLength = ADTS_HEADER_SIZE + ADTS_CRC_SIZE;
         } else {
@@ -72,14 +65,15 @@ class AacStreamReader implements StreamReader {
             skipLength = ADTS_HEADER_SIZE;
         }
 
-        pba.skipBytes(skipLength);
+        mSampleData.skipBytes(skipLength);
 
-        final int aacFrameLength = payload.length - skipLength;
+        final int aacFrameLength = muxpkt.getPayloadLength() - skipLength;
 
         // TODO: Set Buffer Flag key frame based on frametype
         // frametype   u32   required   Type of frame as ASCII value: 'I', 'P', 'B'
-        mTrackOutput.sampleData(pba, aacFrameLength);
-        mTrackOutput.sampleMetadata(pts, C.BUFFER_FLAG_KEY_FRAME, aacFrameLength, 0, null);
+        getTrackOutput().sampleData(mSampleData, aacFrameLength);
+        getTrackOutput().sampleMetadata(pts, C.BUFFER_FLAG_KEY_FRAME, aacFrameLength, 0, null);
+        return true;
     }
 
     @Override
@@ -87,8 +81,14 @@ class AacStreamReader implements StreamReader {
         // Nothing to be released
     }
 
+    @Override
+    public int getTrackType() {
+        return C.TRACK_TYPE_AUDIO;
+    }
+
     @NonNull
-    private Format buildFormat(int streamIndex, @NonNull HtspMessage stream) {
+    @Override
+    protected Format buildFormat(int streamIndex, @NonNull HtspMessage stream) {
         List<byte[]> initializationData;
 
         int rate = Format.NO_VALUE;
@@ -30,7 +30,7 @@ import ie.macinnes.tvheadend.TvhMappings;
 class Ac3StreamReader extends PlainStreamReader {
 
     Ac3StreamReader(Context context) {
-        super(context, C.TRACK_TYPE_AUDIO);
+        super(context);
     }
 
     @NonNull
@@ -58,7 +58,7 @@ class Ac3StreamReader extends PlainStreamReader {
     }
 
     @Override
-    protected int getTrackType() {
+    public int getTrackType() {
         return C.TRACK_TYPE_AUDIO;
     }
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player.reader;
+
+import androidx.annotation.NonNull;
+
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+
+import ie.macinnes.htsp.HtspMessage;
+
+/**
+ * A StreamReader feeding a single track, whose Formats are looked up in the FormatCache before
+ * being built, and are only pushed to the track again when a re-announced stream changes them.
+ */
+abstract class BaseStreamReader implements StreamReader {
+
+    private TrackOutput mTrackOutput;
+    private Format mFormat;
+
+    @Override
+    public final void createTracks(@NonNull HtspMessage stream, @NonNull ExtractorOutput output) {
+        final int streamIndex = stream.getInteger("index");
+        mTrackOutput = output.track(streamIndex, getTrackType());
+        mFormat = obtainFormat(streamIndex, stream);
+        mTrackOutput.format(mFormat);
+    }
+
+    @Override
+    public final void updateTracks(@NonNull HtspMessage stream) {
+        final Format format = obtainFormat(stream.getInteger("index"), stream);
+        if (!format.equals(mFormat)) {
+            mFormat = format;
+            mTrackOutput.format(mFormat);
+        }
+    }
+
+    protected final TrackOutput getTrackOutput() {
+        return mTrackOutput;
+    }
+
+    @NonNull
+    abstract protected Format buildFormat(int streamIndex, @NonNull HtspMessage stream);
+
+    // Internal Methods
+    @NonNull
+    private Format obtainFormat(int streamIndex, @NonNull HtspMessage stream) {
+        final FormatCache formatCache = FormatCache.getInstance();
+
+        Format format = formatCache.get(stream);
+        if (format == null) {
+            format = buildFormat(streamIndex, stream);
+            formatCache.put(stream, format);
+        }
+
+        return format;
+    }
+}
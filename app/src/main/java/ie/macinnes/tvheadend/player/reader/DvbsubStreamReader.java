@@ -36,7 +36,7 @@ class DvbsubStreamReader extends PlainStreamReader {
     private static final String TAG = DvbsubStreamReader.class.getName();
 
     DvbsubStreamReader(Context context) {
-        super(context, C.TRACK_TYPE_TEXT);
+        super(context);
     }
 
     @NonNull
@@ -64,7 +64,7 @@ class DvbsubStreamReader extends PlainStreamReader {
     }
 
     @Override
-    protected int getTrackType() {
+    public int getTrackType() {
         return C.TRACK_TYPE_TEXT;
     }
 }
@@ -30,7 +30,7 @@ import ie.macinnes.tvheadend.TvhMappings;
 class Eac3StreamReader extends PlainStreamReader {
 
     Eac3StreamReader(Context context) {
-        super(context, C.TRACK_TYPE_AUDIO);
+        super(context);
     }
 
     @NonNull
@@ -58,7 +58,7 @@ class Eac3StreamReader extends PlainStreamReader {
     }
 
     @Override
-    protected int getTrackType() {
+    public int getTrackType() {
         return C.TRACK_TYPE_AUDIO;
     }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player.reader;
+
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.android.exoplayer2.Format;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import ie.macinnes.htsp.HtspMessage;
+
+/**
+ * An LRU cache of the Formats built from subscriptionStart streams, so re-tuning to a recently
+ * watched channel skips re-parsing codec meta and rebuilding every Format.
+ * <p>
+ * A stream's signature is the whole stream message, meta bytes included. HtspSubscriptionDataSource
+ * tags each stream with its channel under {@link #KEY_CHANNEL_ID}, so entries are per channel.
+ * Thread safe.
+ */
+public final class FormatCache {
+    public static final String KEY_CHANNEL_ID = "channelId";
+    public static final long INVALID_CHANNEL_ID = -1;
+
+    // A handful of streams for each of the last few dozen channels
+    private static final int MAX_SIZE = 128;
+
+    private static final FormatCache sInstance = new FormatCache();
+
+    private final LruCache<Key, Format> mFormats = new LruCache<>(MAX_SIZE);
+
+    public static FormatCache getInstance() {
+        return sInstance;
+    }
+
+    private FormatCache() {
+    }
+
+    @Nullable
+    Format get(@NonNull HtspMessage stream) {
+        return mFormats.get(new Key(stream));
+    }
+
+    void put(@NonNull HtspMessage stream, @NonNull Format format) {
+        mFormats.put(new Key(stream), format);
+    }
+
+    private static final class Key {
+        private final HtspMessage mStream;
+        private final int mHashCode;
+
+        Key(@NonNull HtspMessage stream) {
+            mStream = stream;
+
+            // HashMap's own hashCode() and equals() would compare the meta byte[]s by identity
+            int hashCode = 0;
+            for (Map.Entry<String, Object> entry : stream.entrySet()) {
+                hashCode += entry.getKey().hashCode() ^ valueHashCode(entry.getValue());
+            }
+            mHashCode = hashCode;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) o;
+            if (mHashCode != other.mHashCode || mStream.size() != other.mStream.size()) {
+                return false;
+            }
+
+            for (Map.Entry<String, Object> entry : mStream.entrySet()) {
+                if (!valueEquals(entry.getValue(), other.mStream.get(entry.getKey()))) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private static int valueHashCode(Object value) {
+            if (value instanceof byte[]) {
+                return Arrays.hashCode((byte[]) value);
+            }
+            return value.hashCode();
+        }
+
+        private static boolean valueEquals(Object a, Object b) {
+            if (a instanceof byte[] && b instanceof byte[]) {
+                return Arrays.equals((byte[]) a, (byte[]) b);
+            }
+            return a.equals(b);
+        }
+    }
+}
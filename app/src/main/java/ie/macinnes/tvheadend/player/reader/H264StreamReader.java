@@ -25,7 +25,9 @@ import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.ParserException;
 import com.google.android.exoplayer2.util.MimeTypes;
+import com.google.android.exoplayer2.util.NalUnitUtil;
 import com.google.android.exoplayer2.util.ParsableByteArray;
+import com.google.android.exoplayer2.util.ParsableNalUnitBitArray;
 import com.google.android.exoplayer2.video.AvcConfig;
 
 import java.util.List;
@@ -36,8 +38,18 @@ class H264StreamReader extends PlainStreamReader {
 
     private static final String TAG = H264StreamReader.class.getName();
 
+    private static final int NAL_UNIT_TYPE_NON_IDR = 1;
+    private static final int NAL_UNIT_TYPE_IDR = 5;
+    private static final int NAL_UNIT_TYPE_SEI = 6;
+
+    private static final int SEI_PAYLOAD_TYPE_RECOVERY_POINT = 6;
+    private static final int SLICE_TYPE_I = 2;
+
+    private final boolean[] mPrefixFlags = new boolean[3];
+    private final ParsableNalUnitBitArray mNalUnitBitArray = new ParsableNalUnitBitArray(new byte[0], 0, 0);
+
     H264StreamReader(Context context) {
-        super(context, C.TRACK_TYPE_VIDEO);
+        super(context);
     }
 
     @NonNull
@@ -68,7 +80,89 @@ class H264StreamReader extends PlainStreamReader {
     }
 
     @Override
-    protected int getTrackType() {
+    protected boolean isRandomAccessPoint(byte[] data, int offset, int length) {
+        // Walk the Annex-B NAL units up to the first coded slice. Besides IDR frames, broadcast
+        // streams are often open GOP, where decoding starts from an I slice, usually flagged
+        // with a recovery point SEI.
+        final int limit = offset + length;
+        NalUnitUtil.clearPrefixFlags(mPrefixFlags);
+
+        int position = NalUnitUtil.findNalUnit(data, offset, limit, mPrefixFlags);
+        if (position + 3 >= limit) {
+            // Not Annex-B, we can't tell
+            return true;
+        }
+
+        while (position + 3 < limit) {
+            final int nalUnitType = NalUnitUtil.getNalUnitType(data, position);
+            final int nextPosition = NalUnitUtil.findNalUnit(data, position + 3, limit, mPrefixFlags);
+
+            // The NAL unit's payload, after the start code and header
+            mNalUnitBitArray.reset(data, position + 4, Math.max(position + 4, nextPosition));
+
+            if (nalUnitType == NAL_UNIT_TYPE_IDR) {
+                return true;
+            } else if (nalUnitType == NAL_UNIT_TYPE_SEI && hasRecoveryPoint()) {
+                return true;
+            } else if (nalUnitType == NAL_UNIT_TYPE_NON_IDR) {
+                return isIntraSlice();
+            } else if (nalUnitType > NAL_UNIT_TYPE_NON_IDR && nalUnitType < NAL_UNIT_TYPE_IDR) {
+                return false;
+            }
+
+            position = nextPosition;
+        }
+
+        return false;
+    }
+
+    @Override
+    public int getTrackType() {
         return C.TRACK_TYPE_VIDEO;
     }
+
+    // Internal Methods
+    private boolean hasRecoveryPoint() {
+        while (mNalUnitBitArray.canReadBits(16)) {
+            final int payloadType = readSeiValue();
+            final int payloadSize = readSeiValue();
+            if (payloadType == SEI_PAYLOAD_TYPE_RECOVERY_POINT) {
+                return true;
+            }
+            if (payloadSize < 0 || !mNalUnitBitArray.canReadBits(payloadSize * 8)) {
+                return false;
+            }
+            mNalUnitBitArray.skipBits(payloadSize * 8);
+        }
+
+        return false;
+    }
+
+    private int readSeiValue() {
+        // Coded as a run of 0xFF bytes, each adding 255, ended by a smaller byte
+        int value = 0;
+        int b;
+        do {
+            if (!mNalUnitBitArray.canReadBits(8)) {
+                return -1;
+            }
+            b = mNalUnitBitArray.readBits(8);
+            value += b;
+        } while (b == 0xFF);
+
+        return value;
+    }
+
+    private boolean isIntraSlice() {
+        // The slice header starts with first_mb_in_slice then slice_type, where 2 and 7 are I
+        if (!mNalUnitBitArray.canReadExpGolombCodedNum()) {
+            return false;
+        }
+        mNalUnitBitArray.readUnsignedExpGolombCodedInt();
+
+        if (!mNalUnitBitArray.canReadExpGolombCodedNum()) {
+            return false;
+        }
+        return mNalUnitBitArray.readUnsignedExpGolombCodedInt() % 5 == SLICE_TYPE_I;
+    }
 }
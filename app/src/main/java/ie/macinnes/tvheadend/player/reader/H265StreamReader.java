@@ -25,6 +25,7 @@ import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.ParserException;
 import com.google.android.exoplayer2.util.MimeTypes;
+import com.google.android.exoplayer2.util.NalUnitUtil;
 import com.google.android.exoplayer2.util.ParsableByteArray;
 import com.google.android.exoplayer2.video.HevcConfig;
 
@@ -36,8 +37,14 @@ class H265StreamReader extends PlainStreamReader {
 
     private static final String TAG = H265StreamReader.class.getName();
 
+    // BLA_W_LP to RSV_IRAP_VCL23, everything below is a non-IRAP coded slice
+    private static final int NAL_UNIT_TYPE_IRAP_FIRST = 16;
+    private static final int NAL_UNIT_TYPE_IRAP_LAST = 23;
+
+    private final boolean[] mPrefixFlags = new boolean[3];
+
     H265StreamReader(Context context) {
-        super(context, C.TRACK_TYPE_VIDEO);
+        super(context);
     }
 
     @NonNull
@@ -68,7 +75,32 @@ class H265StreamReader extends PlainStreamReader {
     }
 
     @Override
-    protected int getTrackType() {
+    protected boolean isRandomAccessPoint(byte[] data, int offset, int length) {
+        // Walk the Annex-B NAL units up to the first coded slice, which is either IRAP or not
+        final int limit = offset + length;
+        NalUnitUtil.clearPrefixFlags(mPrefixFlags);
+
+        int position = NalUnitUtil.findNalUnit(data, offset, limit, mPrefixFlags);
+        if (position + 3 >= limit) {
+            // Not Annex-B, we can't tell
+            return true;
+        }
+
+        while (position + 3 < limit) {
+            final int nalUnitType = NalUnitUtil.getH265NalUnitType(data, position);
+            if (nalUnitType < NAL_UNIT_TYPE_IRAP_FIRST) {
+                return false;
+            } else if (nalUnitType <= NAL_UNIT_TYPE_IRAP_LAST) {
+                return true;
+            }
+            position = NalUnitUtil.findNalUnit(data, position + 3, limit, mPrefixFlags);
+        }
+
+        return false;
+    }
+
+    @Override
+    public int getTrackType() {
         return C.TRACK_TYPE_VIDEO;
     }
 }
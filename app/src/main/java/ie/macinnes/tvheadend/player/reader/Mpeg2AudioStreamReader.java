@@ -30,7 +30,7 @@ import ie.macinnes.tvheadend.TvhMappings;
 class Mpeg2AudioStreamReader extends PlainStreamReader {
 
     Mpeg2AudioStreamReader(Context context) {
-        super(context, C.TRACK_TYPE_AUDIO);
+        super(context);
     }
 
     @NonNull
@@ -83,7 +83,7 @@ class Mpeg2AudioStreamReader extends PlainStreamReader {
     }
 
     @Override
-    protected int getTrackType() {
+    public int getTrackType() {
         return C.TRACK_TYPE_AUDIO;
     }
 }
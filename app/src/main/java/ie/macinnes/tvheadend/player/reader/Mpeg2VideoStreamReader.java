@@ -29,7 +29,7 @@ import ie.macinnes.htsp.HtspMessage;
 class Mpeg2VideoStreamReader extends PlainStreamReader {
 
     Mpeg2VideoStreamReader(Context context) {
-        super(context, C.TRACK_TYPE_VIDEO);
+        super(context);
     }
 
     @NonNull
@@ -49,7 +49,7 @@ class Mpeg2VideoStreamReader extends PlainStreamReader {
     }
 
     @Override
-    protected int getTrackType() {
+    public int getTrackType() {
         return C.TRACK_TYPE_VIDEO;
     }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.player.reader;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+
+/**
+ * The fields of a muxpkt message as primitives, with the payload as a view onto a shared buffer.
+ * <p>
+ * A single instance is reused for every packet, so StreamReaders must be done with it, and with
+ * its payload, by the time consume() returns.
+ */
+public final class Muxpkt {
+    public static final int NO_FRAME_TYPE = -1;
+
+    private int mStreamIndex;
+    private long mPts;
+    private long mDts;
+    private int mDuration;
+    private int mFrameType;
+
+    private byte[] mPayload;
+    private int mPayloadOffset;
+    private int mPayloadLength;
+
+    public void set(int streamIndex, long pts, long dts, int duration, int frameType,
+                    byte[] payload, int payloadOffset, int payloadLength) {
+        mStreamIndex = streamIndex;
+        mPts = pts;
+        mDts = dts;
+        mDuration = duration;
+        mFrameType = frameType;
+        mPayload = payload;
+        mPayloadOffset = payloadOffset;
+        mPayloadLength = payloadLength;
+    }
+
+    public int getStreamIndex() {
+        return mStreamIndex;
+    }
+
+    /**
+     * @return The presentation timestamp in microseconds, or {@link C#TIME_UNSET}
+     */
+    public long getPts() {
+        return mPts;
+    }
+
+    /**
+     * @return The decode timestamp in microseconds, or {@link C#TIME_UNSET}
+     */
+    public long getDts() {
+        return mDts;
+    }
+
+    /**
+     * @return The frame duration in microseconds
+     */
+    public int getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * @return The frame type as an ASCII value, 'I', 'P' or 'B', or {@link #NO_FRAME_TYPE}
+     */
+    public int getFrameType() {
+        return mFrameType;
+    }
+
+    /**
+     * @return The buffer holding the payload, starting at {@link #getPayloadOffset()}
+     */
+    public byte[] getPayload() {
+        return mPayload;
+    }
+
+    public int getPayloadOffset() {
+        return mPayloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return mPayloadLength;
+    }
+
+    /**
+     * Points the given array at the payload, ready to be passed to TrackOutput.sampleData().
+     */
+    public void wrapPayload(ParsableByteArray target) {
+        target.reset(mPayload, mPayloadOffset + mPayloadLength);
+        target.setPosition(mPayloadOffset);
+    }
+}
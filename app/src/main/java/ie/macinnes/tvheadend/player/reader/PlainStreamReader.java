@@ -21,57 +21,48 @@ import android.content.Context;
 import androidx.annotation.NonNull;
 
 import com.google.android.exoplayer2.C;
-import com.google.android.exoplayer2.Format;
-import com.google.android.exoplayer2.extractor.ExtractorOutput;
-import com.google.android.exoplayer2.extractor.TrackOutput;
 import com.google.android.exoplayer2.util.ParsableByteArray;
 
-import ie.macinnes.htsp.HtspMessage;
 import ie.macinnes.tvheadend.Application;
 
 /**
  * A PlainStreamReader simply copies the raw bytes from muxpkt's over onto the track output
  */
-abstract class PlainStreamReader implements StreamReader {
+abstract class PlainStreamReader extends BaseStreamReader {
 
     private static final String TAG = PlainStreamReader.class.getName();
 
     private final Context mContext;
-    private final int mTrackType;
-    private String mStreamType;
-    private TrackOutput mTrackOutput;
 
-    PlainStreamReader(Context context, int trackType) {
-        mContext = context;
-        mTrackType = trackType;
-    }
+    // Reused for every packet, sampleData() copies out of it before returning
+    private final ParsableByteArray mSampleData = new ParsableByteArray();
 
-    @Override
-    public final void createTracks(@NonNull HtspMessage stream, @NonNull ExtractorOutput output) {
-        final int streamIndex = stream.getInteger("index");
-        mStreamType = stream.getString("type");
-        mTrackOutput = output.track(streamIndex, getTrackType());
-        mTrackOutput.format(buildFormat(streamIndex, stream));
+    PlainStreamReader(Context context) {
+        mContext = context;
     }
 
     @Override
-    public final void consume(@NonNull final HtspMessage message) {
-        final long pts = message.getLong("pts");
-        final int frameType = message.getInteger("frametype", -1);
-        final byte[] payload = message.getByteArray("payload");
+    public final boolean consume(@NonNull final Muxpkt muxpkt) {
+        final long pts = muxpkt.getPts();
+        final int frameType = muxpkt.getFrameType();
+        final int payloadLength = muxpkt.getPayloadLength();
 
-        final ParsableByteArray pba = new ParsableByteArray(payload);
+        muxpkt.wrapPayload(mSampleData);
 
         int bufferFlags = 0;
 
-        if (mTrackType == C.TRACK_TYPE_VIDEO) {
+        if (getTrackType() == C.TRACK_TYPE_VIDEO) {
             // We're looking at a Video stream, be picky about what frames are called keyframes
 
-            // Type -1 = TVHeadend has not provided us a frame type, so everything "is a keyframe"
+            // Type -1 = TVHeadend has not provided us a frame type, so ask the payload
             // Type 73 = I - Intra-coded picture - Full Picture
             // Type 66 = B - Predicted picture - Depends on previous frames
             // Type 80 = P - Bidirectional predicted picture - Depends on previous+future frames
-            if (frameType == -1 || frameType == 73) {
+            if (frameType == Muxpkt.NO_FRAME_TYPE) {
+                if (isRandomAccessPoint(muxpkt.getPayload(), muxpkt.getPayloadOffset(), payloadLength)) {
+                    bufferFlags |= C.BUFFER_FLAG_KEY_FRAME;
+                }
+            } else if (frameType == 73) {
                 bufferFlags |= C.BUFFER_FLAG_KEY_FRAME;
             }
         } else {
@@ -79,8 +70,9 @@ abstract class PlainStreamReader implements StreamReader {
             bufferFlags |= C.BUFFER_FLAG_KEY_FRAME;
         }
 
-        mTrackOutput.sampleData(pba, payload.length);
-        mTrackOutput.sampleMetadata(pts, bufferFlags, payload.length, 0, null);
+        getTrackOutput().sampleData(mSampleData, payloadLength);
+        getTrackOutput().sampleMetadata(pts, bufferFlags, payloadLength, 0, null);
+        return (bufferFlags & C.BUFFER_FLAG_KEY_FRAME) != 0;
     }
 
     @Override
@@ -89,8 +81,11 @@ abstract class PlainStreamReader implements StreamReader {
         Application.getRefWatcher(mContext).watch(this);
     }
 
-    @NonNull
-    abstract protected Format buildFormat(int streamIndex, @NonNull HtspMessage stream);
-
-    abstract protected int getTrackType();
+    /**
+     * Decides if a video packet can be decoded on its own, for when TVHeadend doesn't give us a
+     * frame type. Readers which can't tell from the payload consider everything a key frame.
+     */
+    protected boolean isRandomAccessPoint(byte[] data, int offset, int length) {
+        return true;
+    }
 }
@@ -25,7 +25,21 @@ import ie.macinnes.htsp.HtspMessage;
 public interface StreamReader {
     void createTracks(HtspMessage stream, ExtractorOutput output);
 
-    void consume(@NonNull final HtspMessage message);
+    /**
+     * @return The C.TRACK_TYPE_* of the track this reader creates
+     */
+    int getTrackType();
+
+    /**
+     * Called when TVHeadend re-announces the stream this reader's track was created for. The
+     * track is kept, a new Format is only pushed to it if the stream description changed.
+     */
+    void updateTracks(@NonNull HtspMessage stream);
+
+    /**
+     * @return True if the packet was written out as a key frame
+     */
+    boolean consume(@NonNull final Muxpkt muxpkt);
 
     void release();
 }
\ No newline at end of file
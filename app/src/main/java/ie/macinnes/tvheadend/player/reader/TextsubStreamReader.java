@@ -23,20 +23,15 @@ import androidx.annotation.NonNull;
 
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.Format;
-import com.google.android.exoplayer2.extractor.ExtractorOutput;
-import com.google.android.exoplayer2.extractor.TrackOutput;
 import com.google.android.exoplayer2.util.MimeTypes;
 import com.google.android.exoplayer2.util.ParsableByteArray;
-import com.google.android.exoplayer2.util.Util;
 
-import java.nio.charset.Charset;
 import java.util.Arrays;
-import java.util.Locale;
 
 import ie.macinnes.htsp.HtspMessage;
 import ie.macinnes.tvheadend.Application;
 
-class TextsubStreamReader implements StreamReader {
+class TextsubStreamReader extends BaseStreamReader {
 
     private static final String TAG = TextsubStreamReader.class.getName();
 
@@ -66,40 +61,50 @@ class TextsubStreamReader implements StreamReader {
      */
     private static final int SUBRIP_TIMECODE_LENGTH = 12;
 
-    // UTF-8 is the default on Android
-    private static final Charset UTF_8 = Charset.defaultCharset();
+    // Room for the prefix and a couple of lines of text, grown as needed
+    private static final int INITIAL_SAMPLE_SIZE = 256;
 
     private final Context mContext;
-    private TrackOutput mTrackOutput;
+
+    // Reused for every sample, the prefix is only rewritten at the end timecode
+    private byte[] mSample = Arrays.copyOf(SUBRIP_PREFIX, INITIAL_SAMPLE_SIZE);
+    private final ParsableByteArray mSampleData = new ParsableByteArray();
 
     TextsubStreamReader(Context context) {
         mContext = context;
     }
 
     @Override
-    public final void createTracks(@NonNull HtspMessage stream, @NonNull ExtractorOutput output) {
-        final int streamIndex = stream.getInteger("index");
-        mTrackOutput = output.track(streamIndex, C.TRACK_TYPE_TEXT);
-        mTrackOutput.format(buildFormat(streamIndex, stream));
-    }
-
-    @Override
-    public void consume(@NonNull final HtspMessage message) {
-
-        final long pts = message.getLong("pts");
-        final long duration = message.getInteger("duration");
-        final byte[] payload = Util.getUtf8Bytes(
-                new String(message.getByteArray("payload"), UTF_8).trim());
+    public boolean consume(@NonNull final Muxpkt muxpkt) {
+
+        final long pts = muxpkt.getPts();
+        final long duration = muxpkt.getDuration();
+
+        // Trim the same whitespace String.trim() would. UTF-8 continuation and lead bytes are all
+        // above 0x7f, so this can never split a character.
+        final byte[] payload = muxpkt.getPayload();
+        int start = muxpkt.getPayloadOffset();
+        int end = start + muxpkt.getPayloadLength();
+        while (start < end && (payload[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (payload[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
 
-        final int lengthWithPrefix = SUBRIP_PREFIX.length + payload.length;
-        final byte[] subsipSample = Arrays.copyOf(SUBRIP_PREFIX, lengthWithPrefix);
+        final int lengthWithPrefix = SUBRIP_PREFIX.length + (end - start);
+        if (mSample.length < lengthWithPrefix) {
+            mSample = Arrays.copyOf(mSample, Math.max(lengthWithPrefix, mSample.length * 2));
+        }
 
-        System.arraycopy(payload, 0, subsipSample, SUBRIP_PREFIX.length, payload.length);
+        System.arraycopy(payload, start, mSample, SUBRIP_PREFIX.length, end - start);
 
-        setSubripSampleEndTimecode(subsipSample, duration);
+        setSubripSampleEndTimecode(mSample, duration);
 
-        mTrackOutput.sampleData(new ParsableByteArray(subsipSample), lengthWithPrefix);
-        mTrackOutput.sampleMetadata(pts, C.BUFFER_FLAG_KEY_FRAME, lengthWithPrefix, 0, null);
+        mSampleData.reset(mSample, lengthWithPrefix);
+        getTrackOutput().sampleData(mSampleData, lengthWithPrefix);
+        getTrackOutput().sampleMetadata(pts, C.BUFFER_FLAG_KEY_FRAME, lengthWithPrefix, 0, null);
+        return true;
     }
 
     @Override
@@ -108,8 +113,14 @@ class TextsubStreamReader implements StreamReader {
         Application.getRefWatcher(mContext).watch(this);
     }
 
+    @Override
+    public int getTrackType() {
+        return C.TRACK_TYPE_TEXT;
+    }
+
     @NonNull
-    private Format buildFormat(int streamIndex, @NonNull HtspMessage stream) {
+    @Override
+    protected Format buildFormat(int streamIndex, @NonNull HtspMessage stream) {
         return Format.createTextSampleFormat(
                 Integer.toString(streamIndex),
                 MimeTypes.APPLICATION_SUBRIP,
@@ -120,22 +131,36 @@ class TextsubStreamReader implements StreamReader {
     }
 
     private static void setSubripSampleEndTimecode(byte[] subripSample, long timeUs) {
-        byte[] timeCodeData;
         if (timeUs == C.TIME_UNSET || timeUs == 0) {
-            timeCodeData = SUBRIP_TIMECODE_EMPTY;
-        } else {
-            int hours = (int) (timeUs / 3600000000L);
-            timeUs -= (hours * 3600000000L);
-            int minutes = (int) (timeUs / 60000000);
-            timeUs -= (minutes * 60000000);
-            int seconds = (int) (timeUs / 1000000);
-            timeUs -= (seconds * 1000000);
-            int milliseconds = (int) (timeUs / 1000);
-            timeCodeData = Util.getUtf8Bytes(String.format(Locale.US, "%02d:%02d:%02d,%03d", hours,
-                    minutes, seconds, milliseconds));
+            System.arraycopy(SUBRIP_TIMECODE_EMPTY, 0, subripSample, SUBRIP_PREFIX_END_TIMECODE_OFFSET,
+                    SUBRIP_TIMECODE_LENGTH);
+            return;
         }
 
-        System.arraycopy(timeCodeData, 0, subripSample, SUBRIP_PREFIX_END_TIMECODE_OFFSET,
-                SUBRIP_TIMECODE_LENGTH);
+        int hours = (int) (timeUs / 3600000000L);
+        timeUs -= (hours * 3600000000L);
+        int minutes = (int) (timeUs / 60000000);
+        timeUs -= (minutes * 60000000);
+        int seconds = (int) (timeUs / 1000000);
+        timeUs -= (seconds * 1000000);
+        int milliseconds = (int) (timeUs / 1000);
+
+        // The timecode has a fixed width, "HH:MM:SS,mmm"
+        int offset = SUBRIP_PREFIX_END_TIMECODE_OFFSET;
+        offset = writeDigits(subripSample, offset, Math.min(hours, 99), 2);
+        subripSample[offset++] = ':';
+        offset = writeDigits(subripSample, offset, minutes, 2);
+        subripSample[offset++] = ':';
+        offset = writeDigits(subripSample, offset, seconds, 2);
+        subripSample[offset++] = ',';
+        writeDigits(subripSample, offset, milliseconds, 3);
+    }
+
+    private static int writeDigits(byte[] target, int offset, int value, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            target[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + width;
     }
 }
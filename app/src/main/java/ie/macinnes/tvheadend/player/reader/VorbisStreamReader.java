@@ -38,7 +38,7 @@ class VorbisStreamReader extends PlainStreamReader {
     private static final String TAG = VorbisStreamReader.class.getName();
 
     VorbisStreamReader(Context context) {
-        super(context, C.TRACK_TYPE_AUDIO);
+        super(context);
     }
 
     @NonNull
@@ -76,7 +76,7 @@ class VorbisStreamReader extends PlainStreamReader {
     }
 
     @Override
-    protected int getTrackType() {
+    public int getTrackType() {
         return C.TRACK_TYPE_AUDIO;
     }
 
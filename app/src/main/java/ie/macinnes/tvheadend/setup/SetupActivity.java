@@ -308,6 +308,7 @@ public class SetupActivity extends FragmentActivity {
 
             mConnection.addMessageListener(mEpgSyncTask);
             mConnection.addAuthenticationListener(mEpgSyncTask);
+            mConnection.addConnectionListener(mEpgSyncTask);
 
             mConnection.start();
         }
@@ -317,9 +318,11 @@ public class SetupActivity extends FragmentActivity {
             mConnection.stop();
             mConnection.removeMessageListener(mEpgSyncTask);
             mConnection.removeAuthenticationListener(mEpgSyncTask);
+            mConnection.removeConnectionListener(mEpgSyncTask);
             mConnection = null;
 
             mEpgSyncTask.removeEpgSyncListener(this);
+            mEpgSyncTask.stop();
             mEpgSyncTask = null;
 
             super.onStop();
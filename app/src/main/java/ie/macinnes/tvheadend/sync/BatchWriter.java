@@ -0,0 +1,354 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.sqlite.SQLiteFullException;
+import android.os.Handler;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+
+import ie.macinnes.tvheadend.Constants;
+
+/**
+ * Batches ContentProviderOperations for the TV provider, sizing each applyBatch() call by the
+ * estimated parcel size of its operations rather than by a fixed operation count.
+ * <p>
+ * A batch is applied once it reaches the byte budget or operation cap, or once its oldest
+ * operation has waited for the maximum delay. Raising the delay lets a trickle of updates be
+ * coalesced into a single transaction. All methods must be called on the given Handler's thread.
+ */
+class BatchWriter {
+    private static final String TAG = BatchWriter.class.getSimpleName();
+
+    // Stay well clear of the 1MB binder transaction buffer, which is shared by the whole process
+    private static final int MAX_BATCH_BYTES = 256 * 1024;
+    private static final int MAX_BATCH_OPERATIONS = 500;
+
+    // Rough parcel overhead of a single operation, excluding its values
+    private static final int OPERATION_OVERHEAD_BYTES = 128;
+
+    /**
+     * Receives the result of each operation once its batch has been applied.
+     */
+    interface Callback {
+        /**
+         * Called on the writer's Handler thread, in the order the operations were applied.
+         *
+         * @param id     The ID the operation was added with
+         * @param result The provider's result for the operation
+         */
+        void onOperationApplied(int id, @NonNull ContentProviderResult result);
+
+        /**
+         * Called on the writer's Handler thread for each operation in a batch that failed to
+         * apply.
+         *
+         * @param id The ID the operation was added with
+         */
+        void onOperationDiscarded(int id);
+    }
+
+    /**
+     * Told when all pending operations have been flushed.
+     */
+    interface FlushListener {
+        /**
+         * Called on the writer's Handler thread after a flush in which every batch was committed.
+         *
+         * @param newestReceivedTime Wall clock time the newest flushed operation's message was
+         *                           received, in milliseconds
+         */
+        void onFlushed(long newestReceivedTime);
+
+        /**
+         * Called on the writer's Handler thread after a flush in which at least one batch was
+         * discarded.
+         */
+        void onFlushFailed();
+    }
+
+    private static final class PendingOperation {
+        final int id;
+        final int sortKey;
+        final ContentProviderOperation operation;
+        final int estimatedBytes;
+
+        PendingOperation(int id, int sortKey, ContentProviderOperation operation, int estimatedBytes) {
+            this.id = id;
+            this.sortKey = sortKey;
+            this.operation = operation;
+            this.estimatedBytes = estimatedBytes;
+        }
+    }
+
+    private final String mName;
+    private final ContentResolver mContentResolver;
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private FlushListener mFlushListener;
+
+    private final ArrayList<PendingOperation> mPendingOperations = new ArrayList<>();
+    private final SparseBooleanArray mPendingIds = new SparseBooleanArray();
+    private int mPendingBytes = 0;
+    private long mNewestReceivedTime = 0;
+    private int mCompletedOperations = 0;
+
+    private long mMaxDelayMs;
+    private boolean mHeld = false;
+    private boolean mSortPending = false;
+    private boolean mFlushScheduled = false;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFlushScheduled = false;
+            if (!mHeld) {
+                flush();
+            }
+        }
+    };
+
+    BatchWriter(@NonNull String name, @NonNull ContentResolver contentResolver, @NonNull Handler handler,
+                long maxDelayMs, @NonNull Callback callback) {
+        mName = name;
+        mContentResolver = contentResolver;
+        mHandler = handler;
+        mMaxDelayMs = maxDelayMs;
+        mCallback = callback;
+    }
+
+    void setFlushListener(FlushListener flushListener) {
+        mFlushListener = flushListener;
+    }
+
+    /**
+     * Sets how long the oldest pending operation may wait before the batch is applied.
+     */
+    void setMaxDelay(long maxDelayMs) {
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * While held, operations are only applied by an explicit call to {@link #flush()}.
+     */
+    void setHeld(boolean held) {
+        mHeld = held;
+    }
+
+    /**
+     * When enabled, pending operations are ordered by their sort key before being applied.
+     */
+    void setSortPending(boolean sortPending) {
+        mSortPending = sortPending;
+    }
+
+    boolean isPending(int id) {
+        return mPendingIds.get(id);
+    }
+
+    /**
+     * Adds an operation without values, e.g. a delete.
+     */
+    void add(int id, @NonNull ContentProviderOperation operation) {
+        add(id, System.currentTimeMillis(), operation);
+    }
+
+    /**
+     * Adds an operation without values, e.g. a delete, for a message received at the given wall
+     * clock time.
+     */
+    void add(int id, long receivedTime, @NonNull ContentProviderOperation operation) {
+        add(id, -1, receivedTime, operation, OPERATION_OVERHEAD_BYTES);
+    }
+
+    void add(int id, @NonNull ContentProviderOperation operation, @NonNull ContentValues values) {
+        add(id, -1, operation, values);
+    }
+
+    void add(int id, long receivedTime, @NonNull ContentProviderOperation operation, @NonNull ContentValues values) {
+        add(id, -1, receivedTime, operation, estimateSize(values));
+    }
+
+    void add(int id, int sortKey, @NonNull ContentProviderOperation operation, @NonNull ContentValues values) {
+        add(id, sortKey, System.currentTimeMillis(), operation, estimateSize(values));
+    }
+
+    /**
+     * Applies all pending operations, split into as many batches as the byte budget requires.
+     */
+    void flush() {
+        if (mFlushScheduled) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+        }
+
+        if (mPendingOperations.isEmpty()) {
+            return;
+        }
+
+        Log.d(TAG, "Flushing " + mPendingOperations.size() + " " + mName + " operations, ~"
+                + mPendingBytes + " bytes (" + mCompletedOperations + ")");
+
+        if (mSortPending) {
+            // Stable sort, updates (sort key -1) keep their order and go ahead of the inserts
+            Collections.sort(mPendingOperations, new Comparator<PendingOperation>() {
+                @Override
+                public int compare(PendingOperation o1, PendingOperation o2) {
+                    return Integer.compare(o1.sortKey, o2.sortKey);
+                }
+            });
+        }
+
+        final long startTime = SystemClock.elapsedRealtime();
+
+        boolean committed = true;
+        int start = 0;
+        while (start < mPendingOperations.size()) {
+            int end = start;
+            int batchBytes = 0;
+
+            while (end < mPendingOperations.size() && end - start < MAX_BATCH_OPERATIONS) {
+                final int estimatedBytes = mPendingOperations.get(end).estimatedBytes;
+                if (end > start && batchBytes + estimatedBytes > MAX_BATCH_BYTES) {
+                    break;
+                }
+                batchBytes += estimatedBytes;
+                end++;
+            }
+
+            committed &= applyBatch(start, end);
+            start = end;
+        }
+
+        if (Constants.DEBUG)
+            Log.v(TAG, "Flushed " + mPendingOperations.size() + " " + mName + " operations in "
+                    + (SystemClock.elapsedRealtime() - startTime) + "ms");
+
+        // Finally, reset the pending operations list
+        mCompletedOperations += mPendingOperations.size();
+        mPendingOperations.clear();
+        mPendingIds.clear();
+        mPendingBytes = 0;
+
+        if (mFlushListener != null) {
+            if (committed) {
+                mFlushListener.onFlushed(mNewestReceivedTime);
+            } else {
+                mFlushListener.onFlushFailed();
+            }
+        }
+    }
+
+    // Internal Methods
+    private void add(int id, int sortKey, long receivedTime, ContentProviderOperation operation, int estimatedBytes) {
+        if (!mHeld && !mPendingOperations.isEmpty() && mPendingBytes + estimatedBytes > MAX_BATCH_BYTES) {
+            // This one won't fit, apply what we have first
+            flush();
+        }
+
+        mPendingOperations.add(new PendingOperation(id, sortKey, operation, estimatedBytes));
+        mPendingIds.put(id, true);
+        mPendingBytes += estimatedBytes;
+        mNewestReceivedTime = Math.max(mNewestReceivedTime, receivedTime);
+
+        if (mHeld) {
+            return;
+        }
+
+        if (mPendingOperations.size() >= MAX_BATCH_OPERATIONS) {
+            flush();
+        } else if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, mMaxDelayMs);
+        }
+    }
+
+    /**
+     * @return False if the batch was discarded
+     */
+    private boolean applyBatch(int start, int end) {
+        // Build out an ArrayList of Operations needed for applyBatch()
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            operations.add(mPendingOperations.get(i).operation);
+        }
+
+        // Apply the batch of Operations
+        ContentProviderResult[] results;
+        try {
+            results = mContentResolver.applyBatch(Constants.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException | SQLiteFullException e) {
+            Log.e(TAG, "Failed to flush pending " + mName + " operations, discarding batch", e);
+            discardBatch(start, end);
+            return false;
+        }
+
+        if (operations.size() != results.length) {
+            Log.e(TAG, "Failed to flush pending " + mName + " operations, discarding and moving on, " +
+                    "batch size does not match resultset size");
+            discardBatch(start, end);
+            return false;
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            mCallback.onOperationApplied(mPendingOperations.get(start + i).id, results[i]);
+        }
+
+        return true;
+    }
+
+    private void discardBatch(int start, int end) {
+        for (int i = start; i < end; i++) {
+            mCallback.onOperationDiscarded(mPendingOperations.get(i).id);
+        }
+    }
+
+    private static int estimateSize(ContentValues values) {
+        // Strings are parcelled as UTF-16 with a length prefix and padding, everything else we
+        // store in ContentValues is a small fixed size value plus its type tag.
+        int size = OPERATION_OVERHEAD_BYTES;
+
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            size += 8 + entry.getKey().length() * 2;
+
+            final Object value = entry.getValue();
+            if (value instanceof String) {
+                size += 8 + ((String) value).length() * 2;
+            } else if (value instanceof byte[]) {
+                size += 8 + ((byte[]) value).length;
+            } else {
+                size += 12;
+            }
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.sync;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.tvprovider.media.tv.TvContractCompat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ie.macinnes.htsp.HtspFileInputStream;
+import ie.macinnes.htsp.HtspMessage;
+
+/**
+ * Fetches channel logos into the TV provider in the background.
+ * <p>
+ * Logos are fetched by a small pool of workers, with a limit on concurrent fetches per host. The
+ * source of each stored logo is remembered along with its HTTP validators, so an unchanged logo
+ * is revalidated with a conditional request, or skipped entirely when served over HTSP.
+ */
+class ChannelLogoFetcher {
+    private static final String TAG = ChannelLogoFetcher.class.getSimpleName();
+
+    private static final String PREFERENCES_NAME = "channel_logos";
+
+    private static final int MAX_CONCURRENT_FETCHES = 4;
+    private static final int MAX_CONCURRENT_FETCHES_PER_HOST = 2;
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 10000;
+    private static final int BUFFER_SIZE = 16384;
+
+    // HTSP logos all come from the server we're connected to
+    private static final String HTSP_HOST = "htsp";
+
+    private final ContentResolver mContentResolver;
+    private final HtspMessage.Dispatcher mDispatcher;
+    private final SharedPreferences mSharedPreferences;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ConcurrentHashMap<String, Semaphore> mHostSemaphores = new ConcurrentHashMap<>();
+
+    ChannelLogoFetcher(@NonNull Context context, @NonNull HtspMessage.Dispatcher dispatcher) {
+        mContentResolver = context.getContentResolver();
+        mDispatcher = dispatcher;
+        mSharedPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+        mExecutor = new ThreadPoolExecutor(
+                MAX_CONCURRENT_FETCHES, MAX_CONCURRENT_FETCHES, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a fetch of the given logo into the given channel's logo.
+     */
+    void fetch(final long androidChannelId, @NonNull final Uri logoUri) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String host = isHttp(logoUri) ? logoUri.getHost() : HTSP_HOST;
+                final Semaphore semaphore = getHostSemaphore(host == null ? "" : host);
+
+                try {
+                    semaphore.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                try {
+                    fetchLogo(androidChannelId, logoUri);
+                } finally {
+                    semaphore.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Forgets what we know about a channel's logo, e.g. once the channel has been deleted.
+     */
+    void forget(long androidChannelId) {
+        mSharedPreferences.edit()
+                .remove(sourceKey(androidChannelId))
+                .remove(etagKey(androidChannelId))
+                .remove(lastModifiedKey(androidChannelId))
+                .apply();
+    }
+
+    // Internal Methods
+    private Semaphore getHostSemaphore(String host) {
+        Semaphore semaphore = mHostSemaphores.get(host);
+        if (semaphore == null) {
+            final Semaphore newSemaphore = new Semaphore(MAX_CONCURRENT_FETCHES_PER_HOST);
+            semaphore = mHostSemaphores.putIfAbsent(host, newSemaphore);
+            if (semaphore == null) {
+                semaphore = newSemaphore;
+            }
+        }
+        return semaphore;
+    }
+
+    private void fetchLogo(long androidChannelId, Uri logoUri) {
+        final Uri channelLogoDestUri = TvContractCompat.buildChannelLogoUri(androidChannelId);
+        final boolean sameSource = logoUri.toString().equals(
+                mSharedPreferences.getString(sourceKey(androidChannelId), null));
+
+        String etag = null;
+        String lastModified = null;
+
+        InputStream is = null;
+        OutputStream os = null;
+        HttpURLConnection connection = null;
+
+        try {
+            if (isHttp(logoUri)) {
+                connection = (HttpURLConnection) new URL(logoUri.toString()).openConnection();
+                connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+                connection.setReadTimeout(READ_TIMEOUT_MS);
+
+                if (sameSource) {
+                    final String storedEtag = mSharedPreferences.getString(etagKey(androidChannelId), null);
+                    final String storedLastModified = mSharedPreferences.getString(lastModifiedKey(androidChannelId), null);
+                    if (storedEtag != null) {
+                        connection.setRequestProperty("If-None-Match", storedEtag);
+                    }
+                    if (storedLastModified != null) {
+                        connection.setRequestProperty("If-Modified-Since", storedLastModified);
+                    }
+                }
+
+                final int responseCode = connection.getResponseCode();
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    Log.d(TAG, "Logo unchanged at " + logoUri + ", skipping");
+                    return;
+                } else if (responseCode != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Unexpected HTTP response " + responseCode);
+                }
+
+                etag = connection.getHeaderField("ETag");
+                lastModified = connection.getHeaderField("Last-Modified");
+                is = connection.getInputStream();
+            } else {
+                if (sameSource) {
+                    // HTSP offers no revalidation, but TVHeadend's image cache hands out a new URL
+                    // whenever a channel's icon source changes
+                    Log.d(TAG, "Logo already fetched from " + logoUri + ", skipping");
+                    return;
+                }
+
+                is = new HtspFileInputStream(mDispatcher, logoUri.getPath());
+            }
+
+            os = mContentResolver.openOutputStream(channelLogoDestUri);
+            if (os == null) {
+                throw new IOException("Failed to open " + channelLogoDestUri);
+            }
+
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            int totalRead = 0;
+
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+                totalRead += read;
+            }
+
+            Log.d(TAG, "Successfully fetched logo from " + logoUri + " to " + channelLogoDestUri + " (" + totalRead + " bytes)");
+
+            mSharedPreferences.edit()
+                    .putString(sourceKey(androidChannelId), logoUri.toString())
+                    .putString(etagKey(androidChannelId), etag)
+                    .putString(lastModifiedKey(androidChannelId), lastModified)
+                    .apply();
+
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to fetch logo from " + logoUri + " to " + channelLogoDestUri, e);
+
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // Ignore...
+                }
+            }
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    // Ignore...
+                }
+            }
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static boolean isHttp(Uri uri) {
+        final String scheme = uri.getScheme();
+        return scheme != null && (scheme.equalsIgnoreCase("http") || scheme.equalsIgnoreCase("https"));
+    }
+
+    private static String sourceKey(long androidChannelId) {
+        return androidChannelId + "_source";
+    }
+
+    private static String etagKey(long androidChannelId) {
+        return androidChannelId + "_etag";
+    }
+
+    private static String lastModifiedKey(long androidChannelId) {
+        return androidChannelId + "_last_modified";
+    }
+}
@@ -17,65 +17,49 @@
 package ie.macinnes.tvheadend.sync;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.util.Log;
-import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.tvprovider.media.tv.TvContractCompat;
 
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
-
 import ie.macinnes.htsp.HtspMessage;
 import ie.macinnes.htsp.HtspNotConnectedException;
-import ie.macinnes.tvheadend.TvContractUtils;
 
 /**
- * TODO There is a race between this task, and the EpgSyncTask where any new recordings the
- * EpgSyncTask adds will not exist until after we try and process them here. This will need some
- * thought to fix....
+ * Deletes DVR entries from TVHeadend when their recorded programs are deleted from the TV
+ * provider, e.g. by the user from the TV app.
+ * <p>
+ * Recorded programs are mapped back to their DVR entries through the index EpgSyncTask maintains.
+ * EpgSyncTask drops an entry from the index before deleting its row itself, so only deletes made
+ * outside the app are sent on to the server.
  */
-public class DvrDeleteTask implements HtspMessage.Listener {
+public class DvrDeleteTask {
 
     private static final String TAG = DvrDeleteTask.class.getName();
 
-    private static final Set<String> HANDLED_METHODS = new HashSet<>(Arrays.asList(
-            "dvrEntryAdd",
-            "dvrEntryUpdate",
-            "dvrEntryDelete"));
-
     private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
-    private final HandlerThread mHandlerThread;
-    private final Handler mHandler;
 
-    private final Context mContext;
     private final HtspMessage.Dispatcher mDispatcher;
     private final ContentResolver mContentResolver;
 
-    private final SparseArray<Uri> mRecordedProgramUriMap;
+    private final RecordedProgramIndex mRecordedProgramIndex;
 
-    public DvrDeleteTask(Context context, @NonNull HtspMessage.Dispatcher dispatcher) {
-        mContext = context;
+    DvrDeleteTask(Context context, @NonNull HtspMessage.Dispatcher dispatcher,
+                  @NonNull RecordedProgramIndex recordedProgramIndex) {
         mDispatcher = dispatcher;
+        mRecordedProgramIndex = recordedProgramIndex;
 
-        mContentResolver = mContext.getContentResolver();
-
-        mHandlerThread = new HandlerThread("DvrDeleteTask Handler Thread");
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper());
-
-        mRecordedProgramUriMap = new SparseArray<>();
+        mContentResolver = context.getContentResolver();
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
             mContentResolver.registerContentObserver(TvContractCompat.RecordedPrograms.CONTENT_URI, true, mRecordedProgramContentObserver);
@@ -88,55 +72,6 @@ public class DvrDeleteTask implements HtspMessage.Listener {
         }
     }
 
-    // HtspMessage.Listener Methods
-    @Override
-    public Handler getHandler() {
-        return mHandler;
-    }
-
-    @Override
-    public void onMessage(@NonNull HtspMessage message) {
-        final String method = message.getString("method");
-
-        if (HANDLED_METHODS.contains(method)) {
-            switch (method) {
-                case "dvrEntryAdd":
-                case "dvrEntryUpdate":
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                        handleDvrEntryAddUpdate(message);
-                    }
-                    break;
-                case "dvrEntryDelete":
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                        handleDvrEntryDelete(message);
-                    }
-                    break;
-                default:
-                    throw new RuntimeException("Unknown message method: " + method);
-            }
-        }
-    }
-
-    // Misc Internal Methods
-    private static final String DVR_ENTRY_ID_KEY = "id";
-
-    private void handleDvrEntryAddUpdate(@NonNull HtspMessage message) {
-        final int dvrEntryId = message.getInteger(DVR_ENTRY_ID_KEY);
-
-        if (mRecordedProgramUriMap.indexOfKey(dvrEntryId) >= 0) {
-            // We already have this program in our map, lets save some CPU cycles and do nothing
-        } else if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
-            Uri recordedProgramUri = TvContractUtils.getRecordedProgramUri(mContext, dvrEntryId);
-
-            mRecordedProgramUriMap.put(dvrEntryId, recordedProgramUri);
-        }
-    }
-
-    private void handleDvrEntryDelete(@NonNull HtspMessage message) {
-        final int dvrEntryId = message.getInteger(DVR_ENTRY_ID_KEY);
-        mRecordedProgramUriMap.remove(dvrEntryId);
-    }
-
     private final ContentObserver mRecordedProgramContentObserver = new ContentObserver(mMainThreadHandler) {
         @RequiresApi(api = Build.VERSION_CODES.N)
         @Override
@@ -146,38 +81,40 @@ public class DvrDeleteTask implements HtspMessage.Listener {
                 return;
             }
 
-            String[] projection = {TvContractCompat.RecordedPrograms._ID, TvContractCompat.RecordedPrograms.COLUMN_INTERNAL_PROVIDER_DATA};
-
-            // TODO: Handle when more than 1, or 0 results come back
-            try (Cursor cursor = mContentResolver.query(recordedProgramUri, projection, null, null, null)) {
-                while (cursor != null && cursor.moveToNext()) {
-                    // If we find a match, the entry still exists - bail.
-                    return;
-                }
+            final long recordedProgramId;
+            try {
+                recordedProgramId = ContentUris.parseId(recordedProgramUri);
+            } catch (NumberFormatException | UnsupportedOperationException e) {
+                // Not a single recorded program, ignore
+                return;
             }
 
-            // If we get here, it means the recorded program was deleted. This is all pretty nasty.
-            int dvrEntryId = -1;
+            final int dvrEntryId = mRecordedProgramIndex.getDvrEntryId(recordedProgramId);
+            if (dvrEntryId == RecordedProgramIndex.INVALID_DVR_ENTRY_ID) {
+                // Not one of ours, or we deleted it ourselves
+                return;
+            }
 
-            for (int i = 0; i < mRecordedProgramUriMap.size(); i++) {
-                int key = mRecordedProgramUriMap.keyAt(i);
-                Uri obj = mRecordedProgramUriMap.get(key);
+            String[] projection = {TvContractCompat.RecordedPrograms._ID};
 
-                if (obj.equals(recordedProgramUri)) {
-                    dvrEntryId = key;
+            try (Cursor cursor = mContentResolver.query(recordedProgramUri, projection, null, null, null)) {
+                if (cursor != null && cursor.moveToNext()) {
+                    // The entry still exists, this was an insert or update
+                    return;
                 }
             }
 
-            if (dvrEntryId >= 0) {
-                HtspMessage deleteDvrEntry = new HtspMessage();
-                deleteDvrEntry.put("method", "deleteDvrEntry");
-                deleteDvrEntry.put("id", dvrEntryId);
+            // If we get here, it means the recorded program was deleted
+            mRecordedProgramIndex.remove(dvrEntryId);
 
-                try {
-                    mDispatcher.sendMessage(deleteDvrEntry);
-                } catch (HtspNotConnectedException e) {
-                    Log.e(TAG, "Failed to send deleteDvrEntry - not connected", e);
-                }
+            HtspMessage deleteDvrEntry = new HtspMessage();
+            deleteDvrEntry.put("method", "deleteDvrEntry");
+            deleteDvrEntry.put("id", dvrEntryId);
+
+            try {
+                mDispatcher.sendMessage(deleteDvrEntry);
+            } catch (HtspNotConnectedException e) {
+                Log.e(TAG, "Failed to send deleteDvrEntry - not connected", e);
             }
         }
     };
@@ -0,0 +1,599 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.tvprovider.media.tv.TvContractCompat;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * A compact local copy of the synced channels and events, from which the TV provider can be
+ * rebuilt without waiting on the server, e.g. after a reboot cleared it.
+ * <p>
+ * The snapshot is an append-only file of channel and event records, plus tombstones for deletes.
+ * Later records for the same ID are merged over earlier ones when the file is read, which is done
+ * through a read-only memory mapping. The file is compacted once it holds mostly dead records. A
+ * snapshot is only trusted once a full sync has been recorded into it, until then it can't stand
+ * in for the events a lastUpdate sync would skip. All methods must be called on a single thread.
+ */
+class EpgSnapshot {
+    private static final String TAG = EpgSnapshot.class.getSimpleName();
+
+    private static final String FILE_NAME = "epg_snapshot.bin";
+    private static final int MAGIC = 0x45504753; // "EPGS"
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 8;
+
+    // type (byte), id (int), payload length (int)
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    private static final byte RECORD_CHANNEL = 1;
+    private static final byte RECORD_EVENT = 2;
+    private static final byte RECORD_CHANNEL_DELETE = 3;
+    private static final byte RECORD_EVENT_DELETE = 4;
+    // Marks that a full sync has been recorded
+    private static final byte RECORD_COMPLETE = 5;
+
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_INT = 1;
+    private static final byte VALUE_LONG = 2;
+    private static final byte VALUE_STRING = 3;
+    private static final byte VALUE_BLOB = 4;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Only compact once there are this many records, and this many times more than are live
+    private static final int COMPACT_MIN_RECORDS = 10000;
+    private static final int COMPACT_RATIO = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Every channel and program column EpgSyncTask stores, bar the Android channel ID, which
+    // changes whenever the provider is rebuilt. Values are stored by index, don't reorder.
+    @SuppressWarnings("deprecation")
+    private static final String[] COLUMNS = {
+            TvContractCompat.Channels.COLUMN_INPUT_ID,
+            TvContractCompat.Channels.COLUMN_TYPE,
+            TvContractCompat.Channels.COLUMN_ORIGINAL_NETWORK_ID,
+            TvContractCompat.Channels.COLUMN_DISPLAY_NUMBER,
+            TvContractCompat.Channels.COLUMN_DISPLAY_NAME,
+            TvContractCompat.Programs.COLUMN_INTERNAL_PROVIDER_DATA,
+            TvContractCompat.Programs.COLUMN_TITLE,
+            TvContractCompat.Programs.COLUMN_SHORT_DESCRIPTION,
+            TvContractCompat.Programs.COLUMN_LONG_DESCRIPTION,
+            TvContractCompat.Programs.COLUMN_CANONICAL_GENRE,
+            TvContractCompat.Programs.COLUMN_CONTENT_RATING,
+            TvContractCompat.Programs.COLUMN_START_TIME_UTC_MILLIS,
+            TvContractCompat.Programs.COLUMN_END_TIME_UTC_MILLIS,
+            TvContractCompat.Programs.COLUMN_EPISODE_TITLE,
+            TvContractCompat.Programs.COLUMN_SEASON_DISPLAY_NUMBER,
+            TvContractCompat.Programs.COLUMN_EPISODE_DISPLAY_NUMBER,
+            TvContractCompat.Programs.COLUMN_SEASON_NUMBER,
+            TvContractCompat.Programs.COLUMN_EPISODE_NUMBER,
+            TvContractCompat.Programs.COLUMN_POSTER_ART_URI,
+    };
+
+    /**
+     * The live channels and events in a snapshot, keyed by their TVHeadend IDs.
+     */
+    static final class Contents {
+        final SparseArray<ContentValues> channels = new SparseArray<>();
+        final SparseArray<ContentValues> events = new SparseArray<>();
+        // TVHeadend event ID -> TVHeadend channel ID
+        final SparseIntArray eventChannelIds = new SparseIntArray();
+    }
+
+    private final File mFile;
+
+    private DataOutputStream mOutput;
+    private final ByteArrayOutputStream mRecordBuffer = new ByteArrayOutputStream(1024);
+    private final DataOutputStream mRecordOutput = new DataOutputStream(mRecordBuffer);
+
+    private int mRecordCount = 0;
+    private boolean mComplete = false;
+
+    EpgSnapshot(@NonNull Context context) {
+        mFile = getFile(context);
+    }
+
+    static void delete(@NonNull Context context) {
+        final File file = getFile(context);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Failed to remove EPG snapshot");
+        }
+    }
+
+    /**
+     * Opens the snapshot for appending, dropping any partly written record at its end. Until the
+     * snapshot has been opened, writes to it are ignored.
+     */
+    void open() {
+        mRecordCount = 0;
+        mComplete = false;
+
+        final long validLength = scan();
+
+        try {
+            if (validLength < FILE_HEADER_SIZE) {
+                writeNewFile(mFile);
+            } else if (validLength < mFile.length()) {
+                Log.w(TAG, "Dropping " + (mFile.length() - validLength) + " trailing bytes from EPG snapshot");
+                try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+                    file.setLength(validLength);
+                }
+            }
+
+            mOutput = openForAppend(mFile);
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+
+        Log.d(TAG, "Opened EPG snapshot with " + mRecordCount + " records, complete: " + mComplete);
+    }
+
+    void close() {
+        if (mOutput != null) {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close EPG snapshot", e);
+            }
+            mOutput = null;
+        }
+    }
+
+    /**
+     * @return True if a full sync has been recorded, so the snapshot covers every event
+     */
+    boolean isComplete() {
+        return mComplete;
+    }
+
+    /**
+     * Discards everything in the snapshot, ready for a full sync to be recorded into it.
+     */
+    void reset() {
+        if (mOutput == null) {
+            return;
+        }
+
+        close();
+
+        try {
+            writeNewFile(mFile);
+            mOutput = openForAppend(mFile);
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+
+        mRecordCount = 0;
+        mComplete = false;
+    }
+
+    /**
+     * Records that a full sync has been written into the snapshot.
+     */
+    void markComplete() {
+        appendRecord(RECORD_COMPLETE, 0, 0, null);
+        mComplete = mOutput != null;
+        flush();
+    }
+
+    void putChannel(int channelId, @NonNull ContentValues values) {
+        appendRecord(RECORD_CHANNEL, channelId, 0, values);
+    }
+
+    void removeChannel(int channelId) {
+        appendRecord(RECORD_CHANNEL_DELETE, channelId, 0, null);
+    }
+
+    void putEvent(int eventId, int channelId, @NonNull ContentValues values) {
+        appendRecord(RECORD_EVENT, eventId, channelId, values);
+    }
+
+    void removeEvent(int eventId) {
+        appendRecord(RECORD_EVENT_DELETE, eventId, 0, null);
+    }
+
+    /**
+     * Hands any buffered records to the file system.
+     */
+    void flush() {
+        if (mOutput == null) {
+            return;
+        }
+
+        try {
+            mOutput.flush();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Reads the live channels and events from the snapshot. Events which have already ended, or
+     * whose channel is gone, are left out.
+     *
+     * @return The contents, or null if the snapshot couldn't be read
+     */
+    @Nullable
+    Contents read() {
+        flush();
+
+        final Contents contents = new Contents();
+
+        try (FileInputStream in = new FileInputStream(mFile)) {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (!readFileHeader(buffer)) {
+                return null;
+            }
+
+            byte[] scratch = new byte[1024];
+
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                final byte type = buffer.get();
+                final int id = buffer.getInt();
+                final int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+
+                final int end = buffer.position() + length;
+
+                switch (type) {
+                    case RECORD_CHANNEL:
+                        scratch = readValues(buffer, end, getOrCreate(contents.channels, id), scratch);
+                        break;
+                    case RECORD_EVENT:
+                        contents.eventChannelIds.put(id, buffer.getInt());
+                        scratch = readValues(buffer, end, getOrCreate(contents.events, id), scratch);
+                        break;
+                    case RECORD_CHANNEL_DELETE:
+                        contents.channels.remove(id);
+                        break;
+                    case RECORD_EVENT_DELETE:
+                        contents.events.remove(id);
+                        contents.eventChannelIds.delete(id);
+                        break;
+                    default:
+                        break;
+                }
+
+                buffer.position(end);
+            }
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            Log.w(TAG, "Failed to read EPG snapshot", e);
+            return null;
+        }
+
+        dropStaleEvents(contents);
+
+        return contents;
+    }
+
+    /**
+     * Rewrites the snapshot with only its live records, if it has grown mostly dead ones.
+     *
+     * @param liveRecords Roughly how many channels and events are live
+     */
+    void compactIfNeeded(int liveRecords) {
+        if (mOutput == null || mRecordCount < COMPACT_MIN_RECORDS
+                || mRecordCount < liveRecords * COMPACT_RATIO) {
+            return;
+        }
+
+        final Contents contents = read();
+        if (contents == null) {
+            return;
+        }
+
+        final File tmpFile = new File(mFile.getPath() + ".tmp");
+        final boolean complete = mComplete;
+
+        close();
+
+        try {
+            writeNewFile(tmpFile);
+            mOutput = openForAppend(tmpFile);
+
+            mRecordCount = 0;
+
+            for (int i = 0; i < contents.channels.size(); i++) {
+                writeRecord(RECORD_CHANNEL, contents.channels.keyAt(i), 0, contents.channels.valueAt(i));
+            }
+
+            for (int i = 0; i < contents.events.size(); i++) {
+                final int eventId = contents.events.keyAt(i);
+                writeRecord(RECORD_EVENT, eventId, contents.eventChannelIds.get(eventId), contents.events.valueAt(i));
+            }
+
+            if (complete) {
+                writeRecord(RECORD_COMPLETE, 0, 0, null);
+            }
+
+            mOutput.close();
+            mOutput = null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to compact EPG snapshot", e);
+            close();
+            tmpFile.delete();
+            open();
+            return;
+        }
+
+        if (!tmpFile.renameTo(mFile)) {
+            Log.w(TAG, "Failed to replace EPG snapshot file");
+            tmpFile.delete();
+        }
+
+        open();
+
+        Log.d(TAG, "Compacted EPG snapshot to " + mRecordCount + " records");
+    }
+
+    // Internal Methods
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Walks the record headers, counting records and looking for a completion marker.
+     *
+     * @return The length of the file up to the end of its last whole record
+     */
+    private long scan() {
+        if (!mFile.exists()) {
+            return 0;
+        }
+
+        try (FileInputStream in = new FileInputStream(mFile)) {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (!readFileHeader(buffer)) {
+                return 0;
+            }
+
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                final byte type = buffer.get();
+                buffer.getInt();
+                final int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    // Cut short, most likely by a crash mid-write
+                    buffer.position(buffer.position() - RECORD_HEADER_SIZE);
+                    break;
+                }
+
+                buffer.position(buffer.position() + length);
+                mRecordCount++;
+
+                if (type == RECORD_COMPLETE) {
+                    mComplete = true;
+                }
+            }
+
+            return buffer.position();
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Failed to scan EPG snapshot, starting afresh", e);
+            mRecordCount = 0;
+            mComplete = false;
+            return 0;
+        }
+    }
+
+    private static boolean readFileHeader(ByteBuffer buffer) {
+        if (buffer.remaining() < FILE_HEADER_SIZE) {
+            return false;
+        }
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != FILE_VERSION) {
+            Log.w(TAG, "Ignoring EPG snapshot with unknown file version");
+            return false;
+        }
+
+        return true;
+    }
+
+    private static void writeNewFile(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FILE_VERSION);
+        }
+    }
+
+    private static DataOutputStream openForAppend(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+    }
+
+    private void appendRecord(byte type, int id, int channelId, ContentValues values) {
+        if (mOutput == null) {
+            return;
+        }
+
+        try {
+            writeRecord(type, id, channelId, values);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void writeRecord(byte type, int id, int channelId, ContentValues values) throws IOException {
+        mRecordBuffer.reset();
+
+        if (type == RECORD_EVENT) {
+            mRecordOutput.writeInt(channelId);
+        }
+
+        if (values != null) {
+            writeValues(mRecordOutput, values);
+        }
+
+        mRecordOutput.flush();
+
+        mOutput.writeByte(type);
+        mOutput.writeInt(id);
+        mOutput.writeInt(mRecordBuffer.size());
+        mRecordBuffer.writeTo(mOutput);
+
+        mRecordCount++;
+    }
+
+    private static void writeValues(DataOutputStream out, ContentValues values) throws IOException {
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            final int column = indexOfColumn(entry.getKey());
+            if (column < 0) {
+                continue;
+            }
+
+            out.writeByte(column);
+
+            final Object value = entry.getValue();
+            if (value == null) {
+                out.writeByte(VALUE_NULL);
+            } else if (value instanceof Integer) {
+                out.writeByte(VALUE_INT);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(VALUE_LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof byte[]) {
+                final byte[] blob = (byte[]) value;
+                out.writeByte(VALUE_BLOB);
+                out.writeInt(blob.length);
+                out.write(blob);
+            } else {
+                final byte[] string = value.toString().getBytes(UTF_8);
+                out.writeByte(VALUE_STRING);
+                out.writeInt(string.length);
+                out.write(string);
+            }
+        }
+    }
+
+    private static byte[] readValues(ByteBuffer buffer, int end, ContentValues values, byte[] scratch) {
+        while (buffer.position() < end) {
+            final int column = buffer.get();
+            final byte type = buffer.get();
+            if (column < 0 || column >= COLUMNS.length) {
+                throw new IllegalArgumentException("Unknown column " + column);
+            }
+
+            final String key = COLUMNS[column];
+
+            switch (type) {
+                case VALUE_NULL:
+                    values.putNull(key);
+                    break;
+                case VALUE_INT:
+                    values.put(key, buffer.getInt());
+                    break;
+                case VALUE_LONG:
+                    values.put(key, buffer.getLong());
+                    break;
+                case VALUE_STRING: {
+                    final int length = buffer.getInt();
+                    if (length > scratch.length) {
+                        scratch = new byte[Math.max(length, scratch.length * 2)];
+                    }
+                    buffer.get(scratch, 0, length);
+                    values.put(key, new String(scratch, 0, length, UTF_8));
+                    break;
+                }
+                case VALUE_BLOB: {
+                    final byte[] blob = new byte[buffer.getInt()];
+                    buffer.get(blob);
+                    values.put(key, blob);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown value type " + type);
+            }
+        }
+
+        return scratch;
+    }
+
+    private static int indexOfColumn(String key) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static ContentValues getOrCreate(SparseArray<ContentValues> map, int id) {
+        ContentValues values = map.get(id);
+        if (values == null) {
+            values = new ContentValues();
+            map.put(id, values);
+        }
+        return values;
+    }
+
+    private static void dropStaleEvents(Contents contents) {
+        final long now = System.currentTimeMillis();
+
+        for (int i = contents.events.size() - 1; i >= 0; i--) {
+            final int eventId = contents.events.keyAt(i);
+            final Long endTime = contents.events.valueAt(i).getAsLong(
+                    TvContractCompat.Programs.COLUMN_END_TIME_UTC_MILLIS);
+
+            if ((endTime != null && endTime < now)
+                    || contents.channels.get(contents.eventChannelIds.get(eventId)) == null) {
+                contents.events.removeAt(i);
+                contents.eventChannelIds.delete(eventId);
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        // A snapshot with records missing can't be trusted, drop it so the next start records a
+        // new one from a full sync
+        Log.w(TAG, "Failed to write EPG snapshot, discarding it", e);
+        close();
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "Failed to remove EPG snapshot");
+        }
+        mRecordCount = 0;
+        mComplete = false;
+    }
+}
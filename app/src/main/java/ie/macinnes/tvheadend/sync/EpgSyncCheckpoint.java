@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import ie.macinnes.tvheadend.Constants;
+
+/**
+ * Tracks the EPG "lastUpdate" checkpoint sent with enableAsyncMetadata.
+ * <p>
+ * The checkpoint only moves forward once the events it covers have been committed to the TV
+ * provider. During the initial sync TVHeadend sends events in no particular time order, so the
+ * checkpoint stays put until the whole sync has been committed, and an interrupted sync resumes
+ * from the previous checkpoint. Afterwards, it follows each committed batch of live updates.
+ * Writes to SharedPreferences are throttled. All methods except {@link #getLastUpdate()} must be
+ * called on the given Handler's thread.
+ */
+class EpgSyncCheckpoint {
+    private static final String TAG = EpgSyncCheckpoint.class.getSimpleName();
+
+    private static final long PERSIST_INTERVAL_MS = 5000;
+
+    private final SharedPreferences mSharedPreferences;
+    private final Handler mHandler;
+
+    private long mSyncStartTime = -1;
+    private boolean mInitialSyncCompleted = false;
+    private boolean mEnabled = true;
+
+    private long mCheckpoint = -1;
+    private long mPersistedCheckpoint = -1;
+    private long mLastPersistTime = 0;
+    private boolean mPersistScheduled = false;
+
+    private final Runnable mPersistRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mPersistScheduled = false;
+            persist();
+        }
+    };
+
+    EpgSyncCheckpoint(@NonNull Context context, @NonNull Handler handler) {
+        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
+        mHandler = handler;
+    }
+
+    /**
+     * @return The last durable checkpoint, in seconds since the epoch
+     */
+    long getLastUpdate() {
+        return mSharedPreferences.getLong(Constants.KEY_EPG_LAST_UPDATE, 0);
+    }
+
+    /**
+     * Called when a new sync has been requested from the server.
+     *
+     * @param syncStartTime Wall clock time of the request, in milliseconds
+     * @param enabled       False if this sync can't move the checkpoint, e.g. it covers only part
+     *                      of the EPG window
+     */
+    void onSyncStarted(long syncStartTime, boolean enabled) {
+        mSyncStartTime = syncStartTime;
+        mInitialSyncCompleted = false;
+        mEnabled = enabled;
+    }
+
+    /**
+     * Called once a batch of events has been committed to the TV provider.
+     *
+     * @param committedTime Wall clock time up to which every received event has been committed,
+     *                      in milliseconds
+     */
+    void onEventsCommitted(long committedTime) {
+        if (mInitialSyncCompleted) {
+            advance(committedTime);
+        }
+    }
+
+    /**
+     * Called when a batch of events failed to commit to the TV provider. The checkpoint stays
+     * where it is until the next sync, so that sync fetches the lost events again.
+     */
+    void onEventsLost() {
+        if (mEnabled) {
+            Log.w(TAG, "Events were lost, holding the EPG lastUpdate checkpoint until the next sync");
+        }
+        mEnabled = false;
+    }
+
+    /**
+     * Called once everything from the initial sync has been committed to the TV provider.
+     */
+    void onInitialSyncCompleted() {
+        mInitialSyncCompleted = true;
+
+        if (mSyncStartTime != -1) {
+            advance(mSyncStartTime);
+        }
+
+        // Make the end of the initial sync durable straight away
+        persist();
+    }
+
+    // Internal Methods
+    private void advance(long checkpoint) {
+        if (!mEnabled || checkpoint <= mCheckpoint) {
+            return;
+        }
+
+        mCheckpoint = checkpoint;
+
+        if (mPersistScheduled) {
+            return;
+        }
+
+        final long sinceLastPersist = SystemClock.elapsedRealtime() - mLastPersistTime;
+        if (sinceLastPersist >= PERSIST_INTERVAL_MS) {
+            persist();
+        } else {
+            mPersistScheduled = true;
+            mHandler.postDelayed(mPersistRunnable, PERSIST_INTERVAL_MS - sinceLastPersist);
+        }
+    }
+
+    private void persist() {
+        if (mCheckpoint == mPersistedCheckpoint) {
+            return;
+        }
+
+        final long lastUpdate = mCheckpoint / 1000L;
+
+        if (Constants.DEBUG)
+            Log.v(TAG, "Storing EPG lastUpdate checkpoint " + lastUpdate);
+
+        mSharedPreferences.edit().putLong(Constants.KEY_EPG_LAST_UPDATE, lastUpdate).apply();
+
+        mPersistedCheckpoint = mCheckpoint;
+        mLastPersistTime = SystemClock.elapsedRealtime();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.tv.TvContentRating;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import ie.macinnes.tvheadend.BuildConfig;
+import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.DvbMappings;
+import ie.macinnes.tvheadend.R;
+
+/**
+ * An immutable snapshot of everything event mapping needs from preferences and resources, along
+ * with the column values it would otherwise rebuild for every event.
+ * <p>
+ * EpgSyncTask swaps in a new snapshot when a relevant preference changes, so the mapper threads
+ * only ever read a single volatile reference.
+ */
+final class EpgSyncConfig {
+    private static final int MIN_AGE_RATING = 4;
+    private static final int MAX_AGE_RATING = 18;
+
+    // DVB content types are a single byte
+    private static final int MAX_CONTENT_TYPE = 0xff;
+
+    private static final String[] AGE_RATINGS = new String[MAX_AGE_RATING + 1];
+    private static final String[] GENRES = new String[MAX_CONTENT_TYPE + 1];
+
+    static {
+        for (int age = MIN_AGE_RATING; age <= MAX_AGE_RATING; age++) {
+            AGE_RATINGS[age] = TvContentRating.createRating(
+                    "com.android.tv", "DVB", "DVB_" + age).flattenToString();
+        }
+
+        for (int i = 0; i < DvbMappings.PROGRAM_GENRE.size(); i++) {
+            final int contentType = DvbMappings.PROGRAM_GENRE.keyAt(i);
+            if (contentType >= 0 && contentType <= MAX_CONTENT_TYPE) {
+                GENRES[contentType] = DvbMappings.PROGRAM_GENRE.valueAt(i);
+            }
+        }
+    }
+
+    private final String mDefaultPosterArtUri;
+
+    private EpgSyncConfig(String defaultPosterArtUri) {
+        mDefaultPosterArtUri = defaultPosterArtUri;
+    }
+
+    static EpgSyncConfig load(@NonNull Context context, @NonNull SharedPreferences sharedPreferences) {
+        final boolean defaultPosterArtEnabled = sharedPreferences.getBoolean(
+                Constants.KEY_EPG_DEFAULT_POSTER_ART_ENABLED,
+                context.getResources().getBoolean(R.bool.pref_default_epg_default_poster_art_enabled)
+        );
+
+        return new EpgSyncConfig(defaultPosterArtEnabled
+                ? "android.resource://" + BuildConfig.APPLICATION_ID + "/" + R.drawable.default_event_icon
+                : null);
+    }
+
+    /**
+     * @return True if a change to the given preference calls for a new snapshot
+     */
+    static boolean isRelevant(String key) {
+        return Constants.KEY_EPG_DEFAULT_POSTER_ART_ENABLED.equals(key);
+    }
+
+    /**
+     * @return The poster art for events without an image, or null if disabled
+     */
+    @Nullable
+    String getDefaultPosterArtUri() {
+        return mDefaultPosterArtUri;
+    }
+
+    /**
+     * @return The flattened content rating for a DVB minimum age, or null if it's out of range
+     */
+    @Nullable
+    static String getAgeRating(int ageRating) {
+        if (ageRating < MIN_AGE_RATING || ageRating > MAX_AGE_RATING) {
+            return null;
+        }
+        return AGE_RATINGS[ageRating];
+    }
+
+    /**
+     * @return The encoded canonical genre for a DVB content type, or null if it has none
+     */
+    @Nullable
+    static String getGenre(int contentType) {
+        if (contentType < 0 || contentType > MAX_CONTENT_TYPE) {
+            return null;
+        }
+        return GENRES[contentType];
+    }
+}
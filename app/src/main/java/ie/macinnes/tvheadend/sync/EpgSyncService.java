@@ -138,19 +138,21 @@ public class EpgSyncService extends Service {
 
         mConnection = new SimpleHtspConnection(connectionDetails);
 
-        mEpgSyncTask = new EpgSyncTask(this, mConnection);
+        // Both tasks resolve DVR entries through the same index
+        final RecordedProgramIndex recordedProgramIndex = new RecordedProgramIndex(this);
+
+        mEpgSyncTask = new EpgSyncTask(this, mConnection, false, recordedProgramIndex);
         mConnection.addMessageListener(mEpgSyncTask);
         mConnection.addAuthenticationListener(mEpgSyncTask);
+        mConnection.addConnectionListener(mEpgSyncTask);
 
-        mDvrDeleteTask = new DvrDeleteTask(this, mConnection);
-        mConnection.addMessageListener(mDvrDeleteTask);
+        mDvrDeleteTask = new DvrDeleteTask(this, mConnection, recordedProgramIndex);
 
         mConnection.start();
     }
 
     private void closeConnection() {
         if (mDvrDeleteTask != null) {
-            mConnection.removeMessageListener(mDvrDeleteTask);
             mDvrDeleteTask.stop();
             mDvrDeleteTask = null;
         }
@@ -158,7 +160,8 @@ public class EpgSyncService extends Service {
         if (mEpgSyncTask != null) {
             mConnection.removeMessageListener(mEpgSyncTask);
             mConnection.removeAuthenticationListener(mEpgSyncTask);
-//            mEpgSyncTask.stop();
+            mConnection.removeConnectionListener(mEpgSyncTask);
+            mEpgSyncTask.stop();
             mEpgSyncTask = null;
         }
 
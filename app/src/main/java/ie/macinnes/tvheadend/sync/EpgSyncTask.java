@@ -19,50 +19,48 @@ package ie.macinnes.tvheadend.sync;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
-import android.database.sqlite.SQLiteFullException;
-import android.media.tv.TvContentRating;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.RemoteException;
 import android.preference.PreferenceManager;
+import android.provider.BaseColumns;
 import android.util.Log;
-import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 import androidx.tvprovider.media.tv.TvContractCompat;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URL;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArraySet;
-
-import ie.macinnes.htsp.HtspFileInputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ie.macinnes.htsp.HtspConnection;
 import ie.macinnes.htsp.HtspMessage;
 import ie.macinnes.htsp.HtspNotConnectedException;
 import ie.macinnes.htsp.tasks.Authenticator;
-import ie.macinnes.tvheadend.BuildConfig;
 import ie.macinnes.tvheadend.Constants;
-import ie.macinnes.tvheadend.DvbMappings;
+import ie.macinnes.tvheadend.IntLongMap;
+import ie.macinnes.tvheadend.IntSet;
 import ie.macinnes.tvheadend.R;
 import ie.macinnes.tvheadend.TvContractUtils;
 
-public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener {
+public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener, HtspConnection.Listener {
 
     private static final String TAG = EpgSyncTask.class.getSimpleName();
 
@@ -80,6 +78,11 @@ public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener
 
     private static final boolean IS_BRAVIA = Build.MODEL.contains("BRAVIA");
 
+    // Number of stale rows removed per delete statement during the mark-and-sweep
+    private static final int DELETE_CHUNK_SIZE = 500;
+
+    private static final long INVALID_ROW_ID = -1;
+
     // TODO: Move all these HTSP Lib, Modeled after TvContractCompat.Programs.COLUMN_CHANNEL_ID etc?
     private static final String CHANNEL_ID_KEY = "channelId";
     private static final String CHANNEL_NUMBER_KEY = "channelNumber";
@@ -112,6 +115,27 @@ public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener
 
     private static final int TWO_HOURS = 2 * 60 * 60;
 
+    // A full sync first fetches this much of the EPG with getEvents and commits it, so the next
+    // few hours are in the guide before TVHeadend starts sending the whole EPG window
+    private static final int PRIORITY_WINDOW = 3 * 60 * 60;
+    private static final int PRIORITY_FETCH_TIMEOUT_MS = 30000;
+    // Events requested per getEvents, so no single request runs long
+    private static final int PRIORITY_FETCH_PAGE_SIZE = 100;
+
+    // Deletes normally arrive as channelDelete / eventDelete messages. Every so often a full sync
+    // also resends everything and sweeps away whatever it didn't see, to catch deletes we missed.
+    private static final long SWEEP_INTERVAL_MS = 24 * 60 * 60 * 1000;
+
+    // How long provider writes may be held back to batch them, during and after the initial sync
+    private static final long INITIAL_SYNC_MAX_BATCH_DELAY_MS = 2000;
+    private static final long MAX_BATCH_DELAY_MS = 500;
+
+    // Messages received but not yet handled, beyond which we stop reading from the server until
+    // they drain back down to the resume level
+    private static final int MAX_IN_FLIGHT_MESSAGES = 500;
+    private static final int RESUME_IN_FLIGHT_MESSAGES = 250;
+    private static final int MAPPER_THREADS = 2;
+
     /**
      * A listener for EpgSync events
      */
@@ -131,47 +155,69 @@ public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener
 
     private final Context mContext;
     private final HtspMessage.Dispatcher mDispatcher;
-    private boolean mQuickSync = false;
+    private final boolean mQuickSync;
 
     private final ContentResolver mContentResolver;
 
     private final HandlerThread mHandlerThread;
     private final Handler mHandler;
 
+    private volatile HtspConnection mConnection;
+    private final Object mInFlightLock = new Object();
+    private int mInFlightMessages = 0;
+    // Receive times of the in flight messages, oldest first
+    private final ArrayDeque<Long> mInFlightReceivedTimes = new ArrayDeque<>();
+    private boolean mReadPaused = false;
+    private final ThreadPoolExecutor mMapperExecutor;
+
     private final Set<Listener> mListeners = new CopyOnWriteArraySet<>();
 
-    private boolean mInitialSyncCompleted = false;
+    // Read by the mapper threads, replaced whenever a preference it depends on changes
+    private volatile EpgSyncConfig mConfig;
+    private final SharedPreferences mSharedPreferences;
+    // SharedPreferences only holds its listeners weakly, keep a strong reference here
+    private final SharedPreferences.OnSharedPreferenceChangeListener mPreferenceChangeListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    if (EpgSyncConfig.isRelevant(key)) {
+                        mConfig = EpgSyncConfig.load(mContext, sharedPreferences);
+                    }
+                }
+            };
 
-    private final SparseArray<Uri> mChannelUriMap;
-    private final SparseArray<Uri> mRecordedProgramUriMap;
-    private final SparseArray<Uri> mProgramUriMap;
+    // Bumped for every sync, so a priority fetch left over from an earlier connection can tell it
+    // has been superseded
+    private final AtomicInteger mSyncGeneration = new AtomicInteger();
+    // Whether the current sync ends with a mark-and-sweep, the mSeen* sets are only kept if so
+    private boolean mSweepDue = false;
 
-    private final ArrayList<PendingChannelAddUpdate> mPendingChannelOps = new ArrayList<>();
-    private final ArrayList<PendingDvrEntryAddUpdate> mPendingRecordedProgramOps = new ArrayList<>();
-    private final ArrayList<PendingEventAddUpdate> mPendingProgramOps = new ArrayList<>();
+    // TVHeadend ID -> Android row ID maps. Uris are only built when an operation needs one.
+    private final IntLongMap mChannelIdMap;
+    // Shared with DvrDeleteTask
+    private final RecordedProgramIndex mRecordedProgramIndex;
+    private final IntLongMap mProgramIdMap;
 
-    private int mCompletedChannelOps = 0;
-    private int mCompletedRecordedProgramOps = 0;
-    private int mCompletedProgramOps = 0;
+    private final BatchWriter mChannelWriter;
+    private final BatchWriter mRecordedProgramWriter;
+    private final BatchWriter mProgramWriter;
 
-    private final Queue<PendingChannelLogoFetch> mPendingChannelLogoFetches = new ConcurrentLinkedQueue<>();
-    private final byte[] mImageBytes = new byte[102400];
+    private final EpgSyncCheckpoint mCheckpoint;
 
-    private final Set<Integer> mSeenChannels = new HashSet<>();
-    private final Set<Integer> mSeenRecordedPrograms = new HashSet<>();
-    private final Set<Integer> mSeenPrograms = new HashSet<>();
+    private final EventHashStore mEventHashes;
 
-    private final class PendingChannelAddUpdate {
-        public final int channelId;
-        public final int channelNumber;
-        public final ContentProviderOperation operation;
+    private final EpgSnapshot mSnapshot;
+    // Set while the snapshot is being recorded afresh, which needs a full sync
+    private volatile boolean mSnapshotSeeding = false;
+    // Hashes of queued event writes, moved into mEventHashes once the write has been applied
+    private final IntLongMap mPendingEventHashes = new IntLongMap();
 
-        public PendingChannelAddUpdate(int channelId, int channelNumber, ContentProviderOperation operation) {
-            this.channelId = channelId;
-            this.channelNumber = channelNumber;
-            this.operation = operation;
-        }
-    }
+    private final Queue<PendingChannelLogoFetch> mPendingChannelLogoFetches = new ConcurrentLinkedQueue<>();
+    private final ChannelLogoFetcher mChannelLogoFetcher;
+
+    private final IntSet mSeenChannels = new IntSet();
+    private final IntSet mSeenRecordedPrograms = new IntSet();
+    private final IntSet mSeenPrograms = new IntSet();
 
     private final class PendingChannelLogoFetch {
         public final int channelId;
@@ -183,50 +229,140 @@ public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener
         }
     }
 
-    private final class PendingDvrEntryAddUpdate {
-        public final int dvrEntryId;
-        public final ContentProviderOperation operation;
-
-        public PendingDvrEntryAddUpdate(int dvrEntryId, ContentProviderOperation operation) {
-            this.dvrEntryId = dvrEntryId;
-            this.operation = operation;
-        }
-    }
-
-    private final class PendingEventAddUpdate {
-        public final int eventId;
-        public final ContentProviderOperation operation;
-
-        public PendingEventAddUpdate(int eventId, ContentProviderOperation operation) {
-            this.eventId = eventId;
-            this.operation = operation;
-        }
-
+    public EpgSyncTask(Context context, @NonNull HtspMessage.Dispatcher dispatcher) {
+        this(context, dispatcher, false);
     }
 
     public EpgSyncTask(Context context, @NonNull HtspMessage.Dispatcher dispatcher, boolean quickSync) {
-        this(context, dispatcher);
-
-        mQuickSync = quickSync;
+        this(context, dispatcher, quickSync, new RecordedProgramIndex(context));
     }
 
-    public EpgSyncTask(Context context, @NonNull HtspMessage.Dispatcher dispatcher) {
+    EpgSyncTask(Context context, @NonNull HtspMessage.Dispatcher dispatcher, boolean quickSync,
+                @NonNull RecordedProgramIndex recordedProgramIndex) {
         mContext = context;
         mDispatcher = dispatcher;
+        mQuickSync = quickSync;
+        mRecordedProgramIndex = recordedProgramIndex;
         mContentResolver = context.getContentResolver();
 
         mHandlerThread = new HandlerThread("EpgSyncTask Handler Thread");
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper());
 
-        mChannelUriMap = TvContractUtils.buildChannelUriMap(context);
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            mRecordedProgramUriMap = TvContractUtils.buildRecordedProgramUriMap(context);
-            Log.d(TAG, "DVR mRecordedProgramUriMap size: " + mRecordedProgramUriMap.size());
-        } else {
-            mRecordedProgramUriMap = new SparseArray<>();
+        mMapperExecutor = new ThreadPoolExecutor(
+                MAPPER_THREADS, MAPPER_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mMapperExecutor.allowCoreThreadTimeOut(true);
+
+        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
+        mConfig = EpgSyncConfig.load(context, mSharedPreferences);
+        mSharedPreferences.registerOnSharedPreferenceChangeListener(mPreferenceChangeListener);
+
+        mChannelIdMap = TvContractUtils.buildChannelIdMap(context);
+        mProgramIdMap = TvContractUtils.buildProgramIdMap(context);
+
+        mChannelLogoFetcher = new ChannelLogoFetcher(context, dispatcher);
+
+        mEventHashes = new EventHashStore(context);
+        mEventHashes.load();
+
+        mChannelWriter = new BatchWriter("channel", mContentResolver, mHandler,
+                INITIAL_SYNC_MAX_BATCH_DELAY_MS, new BatchWriter.Callback() {
+            @Override
+            public void onOperationApplied(int channelId, @NonNull ContentProviderResult result) {
+                // Only inserts return a Uri, updated channels are already in the maps.
+                if (result.uri != null) {
+                    mChannelIdMap.put(channelId, ContentUris.parseId(result.uri));
+                }
+            }
+
+            @Override
+            public void onOperationDiscarded(int channelId) {
+            }
+        });
+        mRecordedProgramWriter = new BatchWriter("dvrEntry", mContentResolver, mHandler,
+                INITIAL_SYNC_MAX_BATCH_DELAY_MS, new BatchWriter.Callback() {
+            @Override
+            public void onOperationApplied(int dvrEntryId, @NonNull ContentProviderResult result) {
+                if (result.uri != null) {
+                    mRecordedProgramIndex.put(dvrEntryId, ContentUris.parseId(result.uri));
+                }
+            }
+
+            @Override
+            public void onOperationDiscarded(int dvrEntryId) {
+            }
+        });
+        mProgramWriter = new BatchWriter("event", mContentResolver, mHandler,
+                INITIAL_SYNC_MAX_BATCH_DELAY_MS, new BatchWriter.Callback() {
+            @Override
+            public void onOperationApplied(int eventId, @NonNull ContentProviderResult result) {
+                if (result.uri != null) {
+                    mProgramIdMap.put(eventId, ContentUris.parseId(result.uri));
+                }
+
+                if (mPendingEventHashes.containsKey(eventId)) {
+                    mEventHashes.put(eventId, mPendingEventHashes.get(eventId, 0));
+                    mPendingEventHashes.remove(eventId);
+                }
+            }
+
+            @Override
+            public void onOperationDiscarded(int eventId) {
+                // The row wasn't written, so its stored hash no longer describes it either
+                mPendingEventHashes.remove(eventId);
+                mEventHashes.remove(eventId);
+            }
+        });
+
+        mCheckpoint = new EpgSyncCheckpoint(context, mHandler);
+        mProgramWriter.setFlushListener(new BatchWriter.FlushListener() {
+            @Override
+            public void onFlushed(long newestReceivedTime) {
+                // The snapshot must hold everything the checkpoint covers
+                mSnapshot.flush();
+                // Messages still in flight were received before some of what we just committed,
+                // the checkpoint mustn't pass the oldest of them
+                mCheckpoint.onEventsCommitted(Math.min(newestReceivedTime, getOldestInFlightReceivedTime() - 1));
+            }
+
+            @Override
+            public void onFlushFailed() {
+                mSnapshot.flush();
+                // Some events never made it to the provider, so the checkpoint mustn't pass them
+                mCheckpoint.onEventsLost();
+            }
+        });
+
+        setInitialSyncBatching(true);
+
+        // The quick sync used during setup only covers part of the EPG window, so it leaves the
+        // snapshot alone
+        mSnapshot = new EpgSnapshot(context);
+        if (!mQuickSync) {
+            mSnapshot.open();
+
+            if (!mSnapshot.isComplete()) {
+                mSnapshot.reset();
+                mSnapshotSeeding = true;
+            } else if (mChannelIdMap.isEmpty()) {
+                // The provider has been cleared since we last synced, restore it from the
+                // snapshot, the sync then only needs to fetch what changed since
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        rebuildFromSnapshot();
+                    }
+                });
+            }
         }
-        mProgramUriMap = TvContractUtils.buildProgramUriMap(context);
+    }
+
+    /**
+     * Discards the local EPG snapshot, e.g. once the account it was synced from has been removed.
+     */
+    public static void deleteSnapshot(Context context) {
+        EpgSnapshot.delete(context);
     }
 
     public void addEpgSyncListener(Listener listener) {
@@ -245,109 +381,277 @@ public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener
         mListeners.remove(listener);
     }
 
+    public void stop() {
+        mSharedPreferences.unregisterOnSharedPreferenceChangeListener(mPreferenceChangeListener);
+
+        synchronized (mInFlightLock) {
+            if (mReadPaused) {
+                mReadPaused = false;
+                setReadPaused(false);
+            }
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mSnapshot.close();
+            }
+        });
+    }
+
+    // HtspConnection.Listener Methods
+    @Override
+    public void setConnection(@NonNull HtspConnection connection) {
+        mConnection = connection;
+    }
+
+    @Override
+    public void onConnectionStateChange(@NonNull HtspConnection.State state) {
+    }
+
     // Authenticator.Listener Methods
     @Override
     public void onAuthenticationStateChange(@NonNull Authenticator.State state) {
         if (state == Authenticator.State.AUTHENTICATED) {
-            SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext.getApplicationContext());
-
             long epgMaxTime = Long.parseLong(
-                    sharedPreferences.getString(
+                    mSharedPreferences.getString(
                             Constants.KEY_EPG_MAX_TIME,
                             mContext.getResources().getString(R.string.pref_default_epg_max_time)
                     )
             );
-            final boolean lastUpdateEnabled = sharedPreferences.getBoolean(
+            final boolean lastUpdateEnabled = mSharedPreferences.getBoolean(
                     Constants.KEY_EPG_LAST_UPDATE_ENABLED,
                     mContext.getResources().getBoolean(R.bool.pref_default_epg_last_update_enabled)
             );
 
-            Log.i(TAG, "Enabling Async Metadata: maxTime: " + epgMaxTime + ", quickSync: " + mQuickSync);
+            mSyncGeneration.incrementAndGet();
 
-            // Reset the InitialSyncCompleted flag
-            mInitialSyncCompleted = false;
+            final long now = System.currentTimeMillis() / 1000L;
 
-            HtspMessage enableAsyncMetadataRequest = new HtspMessage();
-
-            enableAsyncMetadataRequest.put("method", "enableAsyncMetadata");
-            enableAsyncMetadataRequest.put("epg", 1);
+            final long lastSweep = mSharedPreferences.getLong(Constants.KEY_EPG_LAST_SWEEP, 0);
+            final boolean sweepDue = !mQuickSync && System.currentTimeMillis() - lastSweep >= SWEEP_INTERVAL_MS;
 
             if (mQuickSync) {
                 // Quick sync ignores the epg time preference, and syncs 2 hours of data
                 epgMaxTime = TWO_HOURS;
             }
 
-            epgMaxTime = epgMaxTime + (System.currentTimeMillis() / 1000L);
+            final long priorityMaxTime = now + PRIORITY_WINDOW;
+            final boolean prioritise = epgMaxTime > PRIORITY_WINDOW;
+
+            // TVHeadend applies epgMaxTime to every update for the life of the connection, and
+            // ignores a second enableAsyncMetadata, so this is always the full window
+            epgMaxTime = epgMaxTime + now;
+
+            final HtspMessage enableAsyncMetadataRequest = new HtspMessage();
+
+            enableAsyncMetadataRequest.put("method", "enableAsyncMetadata");
+            enableAsyncMetadataRequest.put("epg", 1);
             enableAsyncMetadataRequest.put("epgMaxTime", epgMaxTime);
 
-            if (lastUpdateEnabled) {
-                final long lastUpdate = sharedPreferences.getLong(Constants.KEY_EPG_LAST_UPDATE, 0);
+            if (sweepDue) {
+                // The sweep needs to see every event, so ask for all of them
+                Log.d(TAG, "Skipping lastUpdate field, full sync with sweep due");
+            } else if (mSnapshotSeeding) {
+                // As does recording a new snapshot
+                Log.d(TAG, "Skipping lastUpdate field, full sync to record EPG snapshot");
+            } else if (lastUpdateEnabled) {
+                final long lastUpdate = mCheckpoint.getLastUpdate();
                 enableAsyncMetadataRequest.put("lastUpdate", lastUpdate);
                 Log.d(TAG, "Setting lastUpdate field to " + lastUpdate);
             } else {
                 Log.d(TAG, "Skipping lastUpdate field, disabled by preference");
             }
 
-            try {
-                mDispatcher.sendMessage(enableAsyncMetadataRequest);
-            } catch (HtspNotConnectedException e) {
-                Log.d(TAG, "Failed to enable async metadata, HTSP not connected", e);
-            }
+            // Only a full sync is worth ordering, an incremental one is small
+            final boolean priorityFetch = prioritise
+                    && !(enableAsyncMetadataRequest.containsKey("lastUpdate")
+                    && enableAsyncMetadataRequest.getLong("lastUpdate") > 0);
+
+            Log.i(TAG, "Enabling Async Metadata: maxTime: " + epgMaxTime + ", priorityFetch: "
+                    + priorityFetch + ", quickSync: " + mQuickSync);
+
+            // Go back to large batches for the sync that's about to start, and hold the checkpoint
+            // until it has been committed. Posted so it lands ahead of the sync's own messages, and
+            // on the thread that owns the writers. A quick sync only covers part of the EPG window,
+            // so it must not move the checkpoint.
+            final long syncStartTime = System.currentTimeMillis();
+            final boolean quickSync = mQuickSync;
+            final int generation = mSyncGeneration.get();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    setInitialSyncBatching(true);
+                    mCheckpoint.onSyncStarted(syncStartTime, !quickSync);
+
+                    mSweepDue = sweepDue;
+                    mSeenChannels.clear();
+                    mSeenRecordedPrograms.clear();
+                    mSeenPrograms.clear();
+
+                    if (priorityFetch && mChannelIdMap.size() > 0) {
+                        startPriorityFetch(generation, priorityMaxTime, enableAsyncMetadataRequest);
+                    } else {
+                        sendEnableAsyncMetadata(enableAsyncMetadataRequest);
+                    }
+                }
+            });
         }
     }
 
     // HtspMessage.Listener Methods
     @Override
     public Handler getHandler() {
-        return mHandler;
+        // We take messages straight from the HTSP reader thread, see onMessage()
+        return null;
     }
 
     @Override
-    public void onMessage(@NonNull HtspMessage message) {
+    public void onMessage(@NonNull final HtspMessage message) {
         final String method = message.getString("method");
 
-        if (HANDLED_METHODS.contains(method)) {
-            switch (method) {
-                case "channelAdd":
-                case "channelUpdate":
-                    handleChannelAddUpdate(message);
-                    break;
-                case "channelDelete":
-                    // Do Something
-                    break;
-                case "dvrEntryAdd":
-                case "dvrEntryUpdate":
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                        handleDvrEntryAddUpdate(message);
-                    }
-                    break;
-                case "dvrEntryDelete":
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                        handleDvrEntryDelete(message);
+        if (!HANDLED_METHODS.contains(method)) {
+            return;
+        }
+
+        // Messages flow through two stages: events are mapped to ContentValues on a worker pool,
+        // then every message is handled in order on mHandler, which owns all the sync state and
+        // does the provider writes. Once too many messages are in flight, we pause reads on the
+        // connection, which lets TCP push back on the server. We're called on the connection's
+        // I/O thread, which also does the writes, so we mustn't block here.
+        synchronized (mInFlightLock) {
+            // Stamped and posted under the lock, so the receive times are handled in order
+            final long receivedTime = System.currentTimeMillis();
+            onMessageQueued(receivedTime);
+
+            final Future<ContentValues> eventValues;
+            if (method.equals("eventAdd") || method.equals("eventUpdate")) {
+                eventValues = mMapperExecutor.submit(new Callable<ContentValues>() {
+                    @Override
+                    public ContentValues call() {
+                        return eventToContentValues(message);
                     }
-                    break;
-                case "eventAdd":
-                case "eventUpdate":
-                    handleEventAddUpdate(message);
-                    storeLastUpdate();
-                    break;
-                case "eventDelete":
-                    // Do Something
-                    break;
-                case "initialSyncCompleted":
-                    handleInitialSyncCompleted(message);
-                    break;
-                default:
-                    throw new RuntimeException("Unknown message method: " + method);
+                });
+            } else {
+                eventValues = null;
             }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handleMessage(method, message, eventValues, receivedTime);
+                    } finally {
+                        onMessageHandled();
+                    }
+                }
+            });
         }
     }
 
     // Internal Methods
-    private void storeLastUpdate() {
-        long unixTime = System.currentTimeMillis() / 1000L;
-        SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext.getApplicationContext());
-        sharedPreferences.edit().putLong(Constants.KEY_EPG_LAST_UPDATE, unixTime).apply();
+    private void onMessageQueued(long receivedTime) {
+        synchronized (mInFlightLock) {
+            mInFlightMessages++;
+            mInFlightReceivedTimes.add(receivedTime);
+            if (!mReadPaused && mInFlightMessages >= MAX_IN_FLIGHT_MESSAGES) {
+                if (Constants.DEBUG)
+                    Log.v(TAG, mInFlightMessages + " messages in flight, pausing reads");
+                mReadPaused = true;
+                setReadPaused(true);
+            }
+        }
+    }
+
+    private void onMessageHandled() {
+        synchronized (mInFlightLock) {
+            mInFlightMessages--;
+            mInFlightReceivedTimes.poll();
+            if (mReadPaused && mInFlightMessages <= RESUME_IN_FLIGHT_MESSAGES) {
+                if (Constants.DEBUG)
+                    Log.v(TAG, mInFlightMessages + " messages in flight, resuming reads");
+                mReadPaused = false;
+                setReadPaused(false);
+            }
+        }
+    }
+
+    /**
+     * @return Wall clock time the oldest message not yet handled was received, or Long.MAX_VALUE
+     * if there are none
+     */
+    private long getOldestInFlightReceivedTime() {
+        synchronized (mInFlightLock) {
+            final Long receivedTime = mInFlightReceivedTimes.peek();
+            return receivedTime != null ? receivedTime : Long.MAX_VALUE;
+        }
+    }
+
+    private void setReadPaused(boolean paused) {
+        final HtspConnection connection = mConnection;
+        if (connection != null) {
+            connection.setReadPaused(paused);
+        }
+    }
+
+    private void handleMessage(@NonNull String method, @NonNull HtspMessage message, Future<ContentValues> eventValues,
+                               long receivedTime) {
+        switch (method) {
+            case "channelAdd":
+            case "channelUpdate":
+                handleChannelAddUpdate(message);
+                break;
+            case "channelDelete":
+                handleChannelDelete(message);
+                break;
+            case "dvrEntryAdd":
+            case "dvrEntryUpdate":
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    handleDvrEntryAddUpdate(message);
+                }
+                break;
+            case "dvrEntryDelete":
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    handleDvrEntryDelete(message);
+                }
+                break;
+            case "eventAdd":
+            case "eventUpdate":
+                final ContentValues values;
+                try {
+                    values = eventValues.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.e(TAG, "Failed to map event " + message.getInteger(EVENT_ID_KEY, -1), e);
+                    break;
+                }
+                handleEventAddUpdate(message, values, receivedTime);
+                break;
+            case "eventDelete":
+                handleEventDelete(message, receivedTime);
+                break;
+            case "initialSyncCompleted":
+                handleInitialSyncCompleted(message);
+                break;
+            default:
+                throw new RuntimeException("Unknown message method: " + method);
+        }
+    }
+
+    private long getAndroidChannelId(int channelId) {
+        return mChannelIdMap.get(channelId, TvContractUtils.INVALID_CHANNEL_ID);
+    }
+
+    private void setInitialSyncBatching(boolean initialSync) {
+        final long maxDelayMs = initialSync ? INITIAL_SYNC_MAX_BATCH_DELAY_MS : MAX_BATCH_DELAY_MS;
+
+        mChannelWriter.setMaxDelay(maxDelayMs);
+        mRecordedProgramWriter.setMaxDelay(maxDelayMs);
+        mProgramWriter.setMaxDelay(maxDelayMs);
+
+        // We have no choice on a Sony set but to not flush until we have all the channels, and
+        // to insert them in channel number order, as Sony's EPG view is buggy.
+        mChannelWriter.setHeld(IS_BRAVIA && initialSync);
+        mChannelWriter.setSortPending(IS_BRAVIA);
     }
 
     private ContentValues channelToContentValues(@NonNull HtspMessage message) {
@@ -379,108 +683,75 @@ public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener
     private void handleChannelAddUpdate(@NonNull HtspMessage message) {
         final int channelId = message.getInteger(CHANNEL_ID_KEY);
         final ContentValues values = channelToContentValues(message);
-        final Uri channelUri = TvContractUtils.getChannelUri(mContext, channelId);
+        long androidChannelId = getAndroidChannelId(channelId);
+
+        if (androidChannelId == TvContractUtils.INVALID_CHANNEL_ID && mChannelWriter.isPending(channelId)) {
+            // The insert for this channel hasn't been applied yet, apply it now so we update the
+            // new row rather than inserting a duplicate.
+            mChannelWriter.flush();
+            androidChannelId = getAndroidChannelId(channelId);
+        }
 
-        if (channelUri == null) {
+        if (androidChannelId == TvContractUtils.INVALID_CHANNEL_ID) {
             // Insert the channel
             if (Constants.DEBUG)
                 Log.v(TAG, "Insert channel " + channelId);
             final int channelNumber = message.getInteger(CHANNEL_NUMBER_KEY);
-            mPendingChannelOps.add(new PendingChannelAddUpdate(
+            mChannelWriter.add(
                     channelId, channelNumber,
                     ContentProviderOperation.newInsert(TvContractCompat.Channels.CONTENT_URI)
                             .withValues(values)
-                            .build()
-            ));
+                            .build(),
+                    values);
         } else {
             // Update the channel
+            final Uri channelUri = TvContractCompat.buildChannelUri(androidChannelId);
             if (Constants.DEBUG)
                 Log.v(TAG, "Update channel " + channelId + " (URI: " + channelUri + ")");
-            mPendingChannelOps.add(new PendingChannelAddUpdate(
-                    channelId, -1,
+            mChannelWriter.add(
+                    channelId,
                     ContentProviderOperation.newUpdate(channelUri)
                             .withValues(values)
-                            .build()
-            ));
+                            .build(),
+                    values);
         }
 
-        if (mInitialSyncCompleted) {
-            flushPendingChannelOps();
-        } else if (!IS_BRAVIA && mPendingChannelOps.size() >= 100) {
-            // Throttle the batch operation not to cause TransactionTooLargeException. If the initial
-            // sync has already completed, flush for every message. Additionally, we have no choice
-            // on a Sony set but to not flush until we have all the channels, as sony's EPG view
-            // is buggy.
-            flushPendingChannelOps();
-        }
+        mSnapshot.putChannel(channelId, values);
 
         if (message.containsKey(CHANNEL_ICON_KEY)) {
             mPendingChannelLogoFetches.add(new PendingChannelLogoFetch(channelId, Uri.parse(message.getString(CHANNEL_ICON_KEY))));
         }
 
-        mSeenChannels.add(channelId);
-    }
-
-    private void flushPendingChannelOps() {
-        if (mPendingChannelOps.isEmpty()) {
-            return;
+        if (mSweepDue) {
+            mSeenChannels.add(channelId);
         }
+    }
 
-        Log.d(TAG, "Flushing " + mPendingChannelOps.size() + " channel operations (" + mCompletedChannelOps + ")");
-
-        if (IS_BRAVIA) {
-            // Sort the Pending Add/Updates by their channel numbers as Sony fails to do this in
-            // their EPG view.
-            Collections.sort(mPendingChannelOps, new Comparator<PendingChannelAddUpdate>() {
-                @Override
-                public int compare(PendingChannelAddUpdate o1, PendingChannelAddUpdate o2) {
-                    if (o1.channelNumber == -1 || o2.channelNumber == -1) {
-                        // One of the events is a channelUpdate, no need (or ability) to sort it
-                        return 0;
-                    }
-
-                    return Integer.compare(o1.channelNumber, o2.channelNumber);
-                }
-            });
-        }
+    private void handleChannelDelete(@NonNull HtspMessage message) {
+        final int channelId = message.getInteger(CHANNEL_ID_KEY);
 
-        // Build out an ArrayList of Operations needed for applyBatch()
-        ArrayList<ContentProviderOperation> operations = new ArrayList<>(mPendingChannelOps.size());
-        for (PendingChannelAddUpdate pcau : mPendingChannelOps) {
-            operations.add(pcau.operation);
+        if (mChannelWriter.isPending(channelId)) {
+            // Make sure any pending insert has landed, so that we know its row
+            mChannelWriter.flush();
         }
 
-        // Apply the batch of Operations
-        ContentProviderResult[] results;
-        try {
-            results = mContext.getContentResolver().applyBatch(
-                    Constants.CONTENT_AUTHORITY, operations);
-        } catch (RemoteException | OperationApplicationException | SQLiteFullException e) {
-            Log.e(TAG, "Failed to flush pending channel operations", e);
+        final long androidChannelId = getAndroidChannelId(channelId);
+        if (androidChannelId == TvContractUtils.INVALID_CHANNEL_ID) {
             return;
         }
 
-        if (operations.size() != results.length) {
-            Log.e(TAG, "Failed to flush pending channels, discarding and moving on, batch size " +
-                    "does not match resultset size");
+        if (Constants.DEBUG)
+            Log.v(TAG, "Delete channel " + channelId + " (ID: " + androidChannelId + ")");
 
-            // Reset the pending operations list
-            mCompletedChannelOps += mPendingChannelOps.size();
-            mPendingChannelOps.clear();
-            return;
-        }
+        mProgramWriter.flush();
+        forgetChannelPrograms(androidChannelId);
 
-        // Update the Channel Uri Map based on the results
-        for (int i = 0; i < mPendingChannelOps.size(); i++) {
-            final int channelId = mPendingChannelOps.get(i).channelId;
-            final ContentProviderResult result = results[i];
+        mChannelIdMap.remove(channelId);
+        mChannelLogoFetcher.forget(androidChannelId);
+        mSnapshot.removeChannel(channelId);
 
-            mChannelUriMap.put(channelId, result.uri);
-        }
-
-        // Finally, reset the pending operations list
-        mCompletedChannelOps += mPendingChannelOps.size();
-        mPendingChannelOps.clear();
+        mChannelWriter.add(channelId, ContentProviderOperation.newDelete(
+                TvContractCompat.buildChannelUri(androidChannelId)).build());
     }
 
     private void flushPendingChannelLogoFetches() {
@@ -488,85 +759,55 @@ public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener
             return;
         }
 
-        Log.d(TAG, "Flushing " + mPendingChannelLogoFetches.size() + " channel logo fetches");
+        Log.d(TAG, "Queueing " + mPendingChannelLogoFetches.size() + " channel logo fetches");
 
-        for (PendingChannelLogoFetch pendingChannelLogoFetch : mPendingChannelLogoFetches) {
+        PendingChannelLogoFetch pendingChannelLogoFetch;
+        while ((pendingChannelLogoFetch = mPendingChannelLogoFetches.poll()) != null) {
             final int channelId = pendingChannelLogoFetch.channelId;
-            final long androidChannelId = TvContractUtils.getChannelId(mContext, channelId);
+            final long androidChannelId = getAndroidChannelId(channelId);
 
             if (androidChannelId == TvContractUtils.INVALID_CHANNEL_ID) {
                 Log.e(TAG, "Failed to find channel in android DB, channel ID: " + channelId);
                 continue;
             }
 
-            final Uri channelLogoSourceUri = pendingChannelLogoFetch.logoUri;
-            final Uri channelLogoDestUri = TvContractCompat.buildChannelLogoUri(androidChannelId);
-
-            InputStream is = null;
-            OutputStream os = null;
-
-            try {
-                final String logoScheme = channelLogoSourceUri.getScheme();
-                if (logoScheme != null && (logoScheme.equalsIgnoreCase("http") || logoScheme.equalsIgnoreCase("https"))) {
-                    is = new URL(channelLogoSourceUri.toString()).openStream();
-                } else {
-                    is = new HtspFileInputStream(mDispatcher, channelLogoSourceUri.getPath());
-                }
-
-                os = mContentResolver.openOutputStream(channelLogoDestUri);
-
-                int read;
-                int totalRead = 0;
-
-                while ((read = is.read(mImageBytes)) != -1) {
-                    os.write(mImageBytes, 0, read);
-                    totalRead += read;
-                }
-
-                Log.d(TAG, "Successfully fetched logo from " + channelLogoSourceUri + " to " + channelLogoDestUri + " (" + totalRead + " bytes)");
-
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to fetch logo from " + channelLogoSourceUri + " to " + channelLogoDestUri, e);
-
-            } finally {
-                if (is != null) {
-                    try {
-                        is.close();
-                    } catch (IOException e) {
-                        // Ignore...
-                    }
-                }
-                if (os != null) {
-                    try {
-                        os.close();
-                    } catch (IOException e) {
-                        // Ignore...
-                    }
-                }
-            }
-
-            mPendingChannelLogoFetches.remove(pendingChannelLogoFetch);
+            mChannelLogoFetcher.fetch(androidChannelId, pendingChannelLogoFetch.logoUri);
         }
     }
 
     private void deleteChannels() {
-        // Dirty
-        int[] existingChannelIds = new int[mChannelUriMap.size()];
+        int[] existingChannelIds = mChannelIdMap.keys();
+        long[] staleRowIds = new long[existingChannelIds.length];
+        int staleCount = 0;
 
-        for (int i = 0; i < mChannelUriMap.size(); i++) {
-            int key = mChannelUriMap.keyAt(i);
-            existingChannelIds[i] = key;
-        }
+        // Make sure any pending program inserts have landed, so that we know their rows
+        mProgramWriter.flush();
 
         for (int existingChannelId : existingChannelIds) {
             if (!mSeenChannels.contains(existingChannelId)) {
                 if (Constants.DEBUG)
                     Log.d(TAG, "Deleting channel " + existingChannelId);
-                Uri channelUri = mChannelUriMap.get(existingChannelId);
-                mChannelUriMap.remove(existingChannelId);
-                mContentResolver.delete(channelUri, null, null);
+                final long rowId = mChannelIdMap.get(existingChannelId, TvContractUtils.INVALID_CHANNEL_ID);
+                mChannelIdMap.remove(existingChannelId);
+                mChannelLogoFetcher.forget(rowId);
+                forgetChannelPrograms(rowId);
+                mSnapshot.removeChannel(existingChannelId);
+                staleRowIds[staleCount++] = rowId;
             }
         }
+
+        deleteRows(TvContractCompat.Channels.CONTENT_URI, staleRowIds, staleCount);
+    }
+
+    /**
+     * The provider deletes a channel's programs along with it, this forgets about them too.
+     */
+    private void forgetChannelPrograms(long androidChannelId) {
+        for (int eventId : TvContractUtils.buildProgramIdMap(mContext, androidChannelId).keys()) {
+            mProgramIdMap.remove(eventId);
+            mEventHashes.remove(eventId);
+            mSnapshot.removeEvent(eventId);
+        }
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
@@ -576,7 +817,7 @@ public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener
         values.put(TvContractCompat.RecordedPrograms.COLUMN_INPUT_ID, TvContractUtils.getInputId());
         values.put(TvContractCompat.RecordedPrograms.COLUMN_INTERNAL_PROVIDER_DATA, String.valueOf(message.getInteger(DVR_ENTRY_ID_KEY)));
 
-        values.put(TvContractCompat.RecordedPrograms.COLUMN_CHANNEL_ID, TvContractUtils.getChannelId(mContext, message.getInteger(DVR_ENTRY_CHANNEL_KEY)));
+        values.put(TvContractCompat.RecordedPrograms.COLUMN_CHANNEL_ID, getAndroidChannelId(message.getInteger(DVR_ENTRY_CHANNEL_KEY)));
 
         // COLUMN_TITLE, COLUMN_EPISODE_TITLE, and COLUMN_SHORT_DESCRIPTION are used in the
         // Live Channels app EPG Grid. COLUMN_LONG_DESCRIPTION appears unused.
@@ -629,7 +870,7 @@ public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener
 
         if (message.containsKey(DVR_ENTRY_CONTENT_TYPE_KEY)) {
             values.put(TvContractCompat.RecordedPrograms.COLUMN_CANONICAL_GENRE,
-                    DvbMappings.PROGRAM_GENRE.get(message.getInteger(DVR_ENTRY_CONTENT_TYPE_KEY)));
+                    EpgSyncConfig.getGenre(message.getInteger(DVR_ENTRY_CONTENT_TYPE_KEY)));
         }
 
         return values;
@@ -639,7 +880,7 @@ public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener
     private void handleDvrEntryAddUpdate(@NonNull HtspMessage message) {
         // Ensure we wrap up any pending channel operations. This is no-op once there are no pending
         // operations.
-        flushPendingChannelOps();
+        mChannelWriter.flush();
 
         final int dvrEntryId = message.getInteger(DVR_ENTRY_ID_KEY);
         final String state = message.getString(DVR_ENTRY_STATE_KEY, "unknown");
@@ -650,119 +891,92 @@ public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener
         }
 
         final ContentValues values = dvrEntryToContentValues(message);
-        final Uri dvrEntryUri = TvContractUtils.getRecordedProgramUri(mContext, dvrEntryId);
 
-        if (dvrEntryUri == null) {
+        long recordedProgramId = mRecordedProgramIndex.getRowId(dvrEntryId);
+
+        if (recordedProgramId == INVALID_ROW_ID && mRecordedProgramWriter.isPending(dvrEntryId)) {
+            // The insert for this entry hasn't been applied yet, apply it now so we update the
+            // new row rather than inserting a duplicate.
+            mRecordedProgramWriter.flush();
+            recordedProgramId = mRecordedProgramIndex.getRowId(dvrEntryId);
+        }
+
+        if (recordedProgramId == INVALID_ROW_ID) {
             // Insert the DVR Entry
             if (Constants.DEBUG)
                 Log.v(TAG, "Insert dvrEntry " + dvrEntryId);
-            mPendingRecordedProgramOps.add(new PendingDvrEntryAddUpdate(
+            mRecordedProgramWriter.add(
                     dvrEntryId,
                     ContentProviderOperation.newInsert(TvContractCompat.RecordedPrograms.CONTENT_URI)
                             .withValues(values)
-                            .build()
-            ));
+                            .build(),
+                    values);
         } else {
             // Update the DVR entry
+            final Uri dvrEntryUri = TvContractCompat.buildRecordedProgramUri(recordedProgramId);
             if (Constants.DEBUG)
                 Log.v(TAG, "Update dvrEntry " + dvrEntryId + " (URI: " + dvrEntryUri + ")");
-            mPendingRecordedProgramOps.add(new PendingDvrEntryAddUpdate(
+            mRecordedProgramWriter.add(
                     dvrEntryId,
                     ContentProviderOperation.newUpdate(dvrEntryUri)
                             .withValues(values)
-                            .build()
-            ));
+                            .build(),
+                    values);
         }
 
-        // Throttle the batch operation not to cause TransactionTooLargeException. If the initial
-        // sync has already completed, flush for every message.
-        if (mInitialSyncCompleted || mPendingProgramOps.size() >= 100) {
-            flushPendingDvrEntryOps();
+        if (mSweepDue) {
+            mSeenRecordedPrograms.add(dvrEntryId);
         }
-
-        mSeenRecordedPrograms.add(dvrEntryId);
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
     private void handleDvrEntryDelete(@NonNull HtspMessage message) {
         final int dvrEntryId = message.getInteger(DVR_ENTRY_ID_KEY);
-        Uri recordedProgramUri = TvContractUtils.getRecordedProgramUri(mContext, dvrEntryId);
 
-        if (recordedProgramUri != null) {
-            mContentResolver.delete(recordedProgramUri, null, null);
+        if (mRecordedProgramWriter.isPending(dvrEntryId)) {
+            // Make sure any pending insert has landed, so that we know its row
+            mRecordedProgramWriter.flush();
         }
-    }
 
-    private void flushPendingDvrEntryOps() {
-        if (mPendingRecordedProgramOps.isEmpty()) {
+        final long recordedProgramId = mRecordedProgramIndex.getRowId(dvrEntryId);
+        if (recordedProgramId == INVALID_ROW_ID) {
             return;
         }
 
-        Log.d(TAG, "Flushing " + mPendingRecordedProgramOps.size() + " dvrEntry operations (" + mCompletedRecordedProgramOps + ")");
+        if (Constants.DEBUG)
+            Log.v(TAG, "Delete dvrEntry " + dvrEntryId + " (ID: " + recordedProgramId + ")");
 
-        // Build out an ArrayList of Operations needed for applyBatch()
-        ArrayList<ContentProviderOperation> operations = new ArrayList<>(mPendingRecordedProgramOps.size());
-        for (PendingDvrEntryAddUpdate prpau : mPendingRecordedProgramOps) {
-            operations.add(prpau.operation);
-        }
+        // Drop it from the index first, so DvrDeleteTask doesn't take the delete for the user's
+        mRecordedProgramIndex.remove(dvrEntryId);
 
-        // Apply the batch of Operations
-        ContentProviderResult[] results;
-        try {
-            results = mContext.getContentResolver().applyBatch(
-                    Constants.CONTENT_AUTHORITY, operations);
-        } catch (RemoteException | OperationApplicationException | SQLiteFullException e) {
-            Log.e(TAG, "Failed to flush pending dvrEntry operations", e);
-            return;
-        }
-
-        if (operations.size() != results.length) {
-            Log.e(TAG, "Failed to flush pending dvrEntrys, discarding and moving on, batch size " +
-                    "does not match resultset size");
-
-            // Reset the pending operations list
-            mCompletedRecordedProgramOps += mPendingRecordedProgramOps.size();
-            mPendingRecordedProgramOps.clear();
-            return;
-        }
-
-        // Update the Channel Uri Map based on the results
-        for (int i = 0; i < mPendingRecordedProgramOps.size(); i++) {
-            final int dvrEntryId = mPendingRecordedProgramOps.get(i).dvrEntryId;
-            final ContentProviderResult result = results[i];
-
-            mRecordedProgramUriMap.put(dvrEntryId, result.uri);
-        }
-
-        // Finally, reset the pending operations list
-        mCompletedRecordedProgramOps += mPendingRecordedProgramOps.size();
-        mPendingRecordedProgramOps.clear();
+        mRecordedProgramWriter.add(dvrEntryId, ContentProviderOperation.newDelete(
+                TvContractCompat.buildRecordedProgramUri(recordedProgramId)).build());
     }
 
     private void deleteRecordedPrograms() {
-        // Dirty
-        int[] existingRecordedProgramIds = new int[mRecordedProgramUriMap.size()];
-
-        for (int i = 0; i < mRecordedProgramUriMap.size(); i++) {
-            int key = mRecordedProgramUriMap.keyAt(i);
-            existingRecordedProgramIds[i] = key;
-        }
+        int[] existingRecordedProgramIds = mRecordedProgramIndex.getDvrEntryIds();
+        long[] staleRowIds = new long[existingRecordedProgramIds.length];
+        int staleCount = 0;
 
         for (int existingRecordedProgramId : existingRecordedProgramIds) {
             if (!mSeenRecordedPrograms.contains(existingRecordedProgramId)) {
                 if (Constants.DEBUG)
                     Log.d(TAG, "DVR Deleting recorded program " + existingRecordedProgramId);
-                Uri recordedProgramUri = mRecordedProgramUriMap.get(existingRecordedProgramId);
-                mRecordedProgramUriMap.remove(existingRecordedProgramId);
-                mContentResolver.delete(recordedProgramUri, null, null);
+                staleRowIds[staleCount++] = mRecordedProgramIndex.getRowId(existingRecordedProgramId);
+                mRecordedProgramIndex.remove(existingRecordedProgramId);
             }
         }
+
+        deleteRows(TvContractCompat.RecordedPrograms.CONTENT_URI, staleRowIds, staleCount);
     }
 
+    /**
+     * Maps an event to program ContentValues. Runs on the mapper pool, so must not touch any sync
+     * state, the Android channel ID is filled in later by handleEventAddUpdate().
+     */
     private ContentValues eventToContentValues(@NonNull HtspMessage message) {
         ContentValues values = new ContentValues();
 
-        values.put(TvContractCompat.Programs.COLUMN_CHANNEL_ID, TvContractUtils.getChannelId(mContext, message.getInteger(CHANNEL_ID_KEY)));
         values.put(TvContractCompat.Programs.COLUMN_INTERNAL_PROVIDER_DATA, String.valueOf(message.getInteger(EVENT_ID_KEY)));
 
         // COLUMN_TITLE, COLUMN_EPISODE_TITLE, and COLUMN_SHORT_DESCRIPTION are used in the
@@ -782,14 +996,13 @@ public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener
 
         if (message.containsKey(PROGRAM_CONTENT_TYPE_KEY)) {
             values.put(TvContractCompat.Programs.COLUMN_CANONICAL_GENRE,
-                    DvbMappings.PROGRAM_GENRE.get(message.getInteger(PROGRAM_CONTENT_TYPE_KEY)));
+                    EpgSyncConfig.getGenre(message.getInteger(PROGRAM_CONTENT_TYPE_KEY)));
         }
 
         if (message.containsKey(PROGRAM_AGE_RATING_KEY)) {
-            final int ageRating = message.getInteger(PROGRAM_AGE_RATING_KEY);
-            if (ageRating >= 4 && ageRating <= 18) {
-                TvContentRating rating = TvContentRating.createRating("com.android.tv", "DVB", "DVB_" + ageRating);
-                values.put(TvContractCompat.Programs.COLUMN_CONTENT_RATING, rating.flattenToString());
+            final String rating = EpgSyncConfig.getAgeRating(message.getInteger(PROGRAM_AGE_RATING_KEY));
+            if (rating != null) {
+                values.put(TvContractCompat.Programs.COLUMN_CONTENT_RATING, rating);
             }
         }
 
@@ -829,154 +1042,197 @@ public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener
         if (message.containsKey(PROGRAM_IMAGE)) {
             values.put(TvContractCompat.Programs.COLUMN_POSTER_ART_URI, message.getString(PROGRAM_IMAGE));
         } else {
-            SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(mContext.getApplicationContext());
-            final boolean defaultPosterArtEnabled = sharedPreferences.getBoolean(
-                    Constants.KEY_EPG_DEFAULT_POSTER_ART_ENABLED,
-                    mContext.getResources().getBoolean(R.bool.pref_default_epg_default_poster_art_enabled)
-            );
-            if (defaultPosterArtEnabled) {
-                values.put(TvContractCompat.Programs.COLUMN_POSTER_ART_URI, "android.resource://" + BuildConfig.APPLICATION_ID + "/" + R.drawable.default_event_icon);
+            final String defaultPosterArtUri = mConfig.getDefaultPosterArtUri();
+            if (defaultPosterArtUri != null) {
+                values.put(TvContractCompat.Programs.COLUMN_POSTER_ART_URI, defaultPosterArtUri);
             }
         }
 
         return values;
     }
 
-    private void handleEventAddUpdate(@NonNull HtspMessage message) {
+    private void handleEventAddUpdate(@NonNull HtspMessage message, @NonNull ContentValues values, long receivedTime) {
         // Ensure we wrap up any pending channel operations. This is no-op once there are no pending
         // operations. This should only be needed when there were no DVR entries provided at all.
-        flushPendingChannelOps();
+        mChannelWriter.flush();
 
         // Ensure we wrap up any pending dvr entry operations. This is no-op once there are no pending
         // operations.
-        flushPendingDvrEntryOps();
+        mRecordedProgramWriter.flush();
 
         final int channelId = message.getInteger(CHANNEL_ID_KEY);
         final int eventId = message.getInteger(EVENT_ID_KEY);
-        final ContentValues values = eventToContentValues(message);
-        final Uri eventUri = TvContractUtils.getProgramUri(mContext, channelId, eventId);
+        values.put(TvContractCompat.Programs.COLUMN_CHANNEL_ID, getAndroidChannelId(channelId));
+        long eventRowId = mProgramIdMap.get(eventId, INVALID_ROW_ID);
+
+        if (mProgramWriter.isPending(eventId)) {
+            // An earlier operation for this event hasn't been applied yet, apply it now so we
+            // update the new row rather than inserting a duplicate, and so its result can't be
+            // mistaken for this one's
+            mProgramWriter.flush();
+            eventRowId = mProgramIdMap.get(eventId, INVALID_ROW_ID);
+        }
+
+        final long hash = EventHashStore.hash(values);
 
-        if (eventUri == null) {
+        if (eventRowId != INVALID_ROW_ID && mEventHashes.isUnchanged(eventId, hash)) {
+            // Nothing we store for this event has changed, don't rewrite the row
+            if (Constants.DEBUG)
+                Log.v(TAG, "Skipping unchanged event " + eventId + " on channel " + channelId);
+            if (mSweepDue) {
+                mSeenPrograms.add(eventId);
+            }
+            if (mSnapshotSeeding) {
+                mSnapshot.putEvent(eventId, channelId, values);
+            }
+            return;
+        }
+
+        // Recorded before add(), which may apply the batch holding this operation straight away.
+        // Only this operation's own result promotes or drops it.
+        mPendingEventHashes.put(eventId, hash);
+
+        if (eventRowId == INVALID_ROW_ID) {
             // Insert the event
             if (Constants.DEBUG)
                 Log.v(TAG, "Insert event " + eventId + " on channel " + channelId);
-            mPendingProgramOps.add(new PendingEventAddUpdate(
+            mProgramWriter.add(
                     eventId,
+                    receivedTime,
                     ContentProviderOperation.newInsert(TvContractCompat.Programs.CONTENT_URI)
                             .withValues(values)
-                            .build()
-            ));
+                            .build(),
+                    values);
         } else {
             // Update the event
+            final Uri eventUri = TvContractCompat.buildProgramUri(eventRowId);
             if (Constants.DEBUG)
                 Log.v(TAG, "Update event " + eventId + " on channel " + channelId + " (URI: " + eventUri + ")");
-            mPendingProgramOps.add(new PendingEventAddUpdate(
+            mProgramWriter.add(
                     eventId,
+                    receivedTime,
                     ContentProviderOperation.newUpdate(eventUri)
                             .withValues(values)
-                            .build()
-            ));
+                            .build(),
+                    values);
         }
 
-        // Throttle the batch operation not to cause TransactionTooLargeException. If the initial
-        // sync has already completed, flush for every message.
-        if (mInitialSyncCompleted || mPendingProgramOps.size() >= 100) {
-            flushPendingEventOps();
-        }
+        mSnapshot.putEvent(eventId, channelId, values);
 
-        mSeenPrograms.add(eventId);
-    }
-
-    private void flushPendingEventOps() {
-        if (mPendingProgramOps.isEmpty()) {
-            return;
+        if (mSweepDue) {
+            mSeenPrograms.add(eventId);
         }
+    }
 
-        Log.d(TAG, "Flushing " + mPendingProgramOps.size() + " event operations (" + mCompletedProgramOps + ")");
+    private void handleEventDelete(@NonNull HtspMessage message, long receivedTime) {
+        final int eventId = message.getInteger(EVENT_ID_KEY);
 
-        // Build out an ArrayList of Operations needed for applyBatch()
-        ArrayList<ContentProviderOperation> operations = new ArrayList<>(mPendingProgramOps.size());
-        for (PendingEventAddUpdate peau : mPendingProgramOps) {
-            operations.add(peau.operation);
+        if (mProgramWriter.isPending(eventId)) {
+            // Make sure any pending insert has landed, so that we know its row
+            mProgramWriter.flush();
         }
 
-        // Apply the batch of Operations
-        ContentProviderResult[] results;
-
-        try {
-            results = mContext.getContentResolver().applyBatch(
-                    Constants.CONTENT_AUTHORITY, operations);
-        } catch (RemoteException | OperationApplicationException | SQLiteFullException e) {
-            Log.e(TAG, "Failed to flush pending event operations", e);
+        final long eventRowId = mProgramIdMap.get(eventId, INVALID_ROW_ID);
+        if (eventRowId == INVALID_ROW_ID) {
             return;
         }
 
-        if (operations.size() != results.length) {
-            Log.e(TAG, "Failed to flush pending events, discarding and moving on, batch size " +
-                    "does not match resultset size");
-
-            // Reset the pending operations list
-            mCompletedProgramOps += mPendingProgramOps.size();
-            mPendingProgramOps.clear();
-            return;
-        }
+        if (Constants.DEBUG)
+            Log.v(TAG, "Delete event " + eventId + " (ID: " + eventRowId + ")");
 
-        // Update the Event Uri Map based on the results
-        for (int i = 0; i < mPendingProgramOps.size(); i++) {
-            final int eventId = mPendingProgramOps.get(i).eventId;
-            final ContentProviderResult result = results[i];
+        mProgramIdMap.remove(eventId);
+        mEventHashes.remove(eventId);
+        mPendingEventHashes.remove(eventId);
+        mSnapshot.removeEvent(eventId);
 
-            mProgramUriMap.put(eventId, result.uri);
-        }
-
-        // Finally, reset the pending operations list
-        mCompletedProgramOps += mPendingProgramOps.size();
-        mPendingProgramOps.clear();
+        mProgramWriter.add(eventId, receivedTime, ContentProviderOperation.newDelete(
+                TvContractCompat.buildProgramUri(eventRowId)).build());
     }
 
     private void deletePrograms() {
-        // Dirty
-        int[] existingProgramIds = new int[mProgramUriMap.size()];
-
-        for (int i = 0; i < mProgramUriMap.size(); i++) {
-            int key = mProgramUriMap.keyAt(i);
-            existingProgramIds[i] = key;
-        }
+        int[] existingProgramIds = mProgramIdMap.keys();
+        long[] staleRowIds = new long[existingProgramIds.length];
+        int staleCount = 0;
 
         for (int existingProgramId : existingProgramIds) {
             if (!mSeenPrograms.contains(existingProgramId)) {
                 if (Constants.DEBUG)
                     Log.d(TAG, "Deleting program " + existingProgramId);
-                Uri programUri = mProgramUriMap.get(existingProgramId);
-                mProgramUriMap.remove(existingProgramId);
-                mContentResolver.delete(programUri, null, null);
+                staleRowIds[staleCount++] = mProgramIdMap.get(existingProgramId, INVALID_ROW_ID);
+                mProgramIdMap.remove(existingProgramId);
+                mEventHashes.remove(existingProgramId);
+                mSnapshot.removeEvent(existingProgramId);
+            }
+        }
+
+        deleteRows(TvContractCompat.Programs.CONTENT_URI, staleRowIds, staleCount);
+    }
+
+    private void sweepCompleted() {
+        mSweepDue = false;
+        mSeenChannels.clear();
+        mSeenRecordedPrograms.clear();
+        mSeenPrograms.clear();
+
+        mSharedPreferences.edit().putLong(Constants.KEY_EPG_LAST_SWEEP, System.currentTimeMillis()).apply();
+    }
+
+    private void deleteRows(Uri contentUri, long[] rowIds, int count) {
+        if (count == 0) {
+            return;
+        }
+
+        Log.d(TAG, "Deleting " + count + " stale rows from " + contentUri);
+
+        // Delete in chunks, one "_id IN (...)" statement each, rather than one transaction per
+        // row. The chunk size keeps each statement well inside SQLite and binder limits.
+        for (int start = 0; start < count; start += DELETE_CHUNK_SIZE) {
+            final int end = Math.min(start + DELETE_CHUNK_SIZE, count);
+
+            StringBuilder selection = new StringBuilder(BaseColumns._ID).append(" IN (");
+            for (int i = start; i < end; i++) {
+                if (i > start) {
+                    selection.append(',');
+                }
+                selection.append(rowIds[i]);
             }
+            selection.append(')');
+
+            mContentResolver.delete(contentUri, selection.toString(), null);
         }
     }
 
     private void handleInitialSyncCompleted(@NonNull HtspMessage message) {
         // Ensure we wrap up any pending channel operations. This is no-op once there are no pending
         // operations. This should only be needed when there were no events provided at all.
-        flushPendingChannelOps();
+        mChannelWriter.flush();
 
         // Ensure we wrap up any pending dvr entry operations. This is no-op once there are no
         // pending operations.  This should only be needed when there were no dvr entries provided at all.
-        flushPendingDvrEntryOps();
+        mRecordedProgramWriter.flush();
 
         // Ensure we wrap up any pending event operations. This is no-op once there are no pending
         // operations.
-        flushPendingEventOps();
+        mProgramWriter.flush();
+
+        // Clear out any stale date, if this sync is due a sweep
+        if (mSweepDue) {
+            deleteChannels();
+            deleteRecordedPrograms();
+            deletePrograms();
+            sweepCompleted();
+        }
 
-        // Clear out any stale date
-        deleteChannels();
-        deleteRecordedPrograms();
-        deletePrograms();
+        syncWindowCommitted();
 
-        // Fetch all the channel logos
+        // Fetch all the channel logos. This happens in the background, there's no need to hold
+        // up the initial sync for them.
         flushPendingChannelLogoFetches();
 
         Log.i(TAG, "Initial sync completed");
-        mInitialSyncCompleted = true;
+
+        // From here on, coalesce the trickle of updates into short time windows
+        setInitialSyncBatching(false);
 
         // Let our listeners know
         for (final Listener listener : mListeners) {
@@ -993,4 +1249,199 @@ public class EpgSyncTask implements HtspMessage.Listener, Authenticator.Listener
             }
         }
     }
+
+    /**
+     * Fetches the priority window for every known channel ahead of the full sync, so it's the
+     * first thing committed, then enables async metadata once that's done.
+     */
+    private void startPriorityFetch(final int generation, final long maxTime,
+                                    @NonNull final HtspMessage enableAsyncMetadataRequest) {
+        final int[] channelIds = mChannelIdMap.keys();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                priorityFetch(generation, channelIds, maxTime);
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mSyncGeneration.get() != generation) {
+                            // Superseded, the new sync has enabled async metadata itself
+                            return;
+                        }
+
+                        mProgramWriter.flush();
+                        sendEnableAsyncMetadata(enableAsyncMetadataRequest);
+                    }
+                });
+            }
+        }, "EpgSyncTask Priority Fetch Thread");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Fetches each channel's events up to maxTime a page of getEvents at a time, feeding them
+     * through onMessage() as if they had arrived as eventAdd messages. Runs on its own thread, as
+     * the requests block. Whatever this misses, the full sync that follows still delivers.
+     */
+    private void priorityFetch(int generation, int[] channelIds, long maxTime) {
+        Log.i(TAG, "Fetching priority EPG window for " + channelIds.length + " channels, maxTime: " + maxTime);
+
+        for (int channelId : channelIds) {
+            if (!fetchChannelEvents(generation, channelId, maxTime)) {
+                return;
+            }
+        }
+
+        Log.i(TAG, "Priority EPG window fetched");
+    }
+
+    /**
+     * Pages through one channel's events, each page starting from the event after the last one
+     * we were sent.
+     *
+     * @return False if the priority fetch should be abandoned
+     */
+    private boolean fetchChannelEvents(int generation, int channelId, long maxTime) {
+        int nextEventId = 0;
+
+        while (true) {
+            if (mSyncGeneration.get() != generation) {
+                Log.i(TAG, "Priority EPG fetch superseded by a new sync, abandoning it");
+                return false;
+            }
+
+            HtspMessage getEventsRequest = new HtspMessage();
+            getEventsRequest.put("method", "getEvents");
+            if (nextEventId == 0) {
+                getEventsRequest.put("channelId", channelId);
+            } else {
+                getEventsRequest.put("eventId", nextEventId);
+            }
+            getEventsRequest.put("numFollowing", PRIORITY_FETCH_PAGE_SIZE);
+            getEventsRequest.put("maxTime", maxTime);
+
+            HtspMessage getEventsResponse;
+            try {
+                getEventsResponse = mDispatcher.sendMessage(getEventsRequest, PRIORITY_FETCH_TIMEOUT_MS);
+            } catch (HtspNotConnectedException e) {
+                Log.w(TAG, "Failed to fetch priority EPG window, HTSP not connected", e);
+                return false;
+            }
+
+            if (getEventsResponse == null || getEventsResponse.containsKey("error")) {
+                Log.w(TAG, "Failed to fetch priority EPG for channel " + channelId + ", abandoning it");
+                return false;
+            }
+
+            HtspMessage[] events = getEventsResponse.getHtspMessageArray("events", null);
+            if (events == null || events.length == 0) {
+                return true;
+            }
+
+            if (Constants.DEBUG)
+                Log.v(TAG, "Fetched " + events.length + " priority events for channel " + channelId);
+
+            for (HtspMessage event : events) {
+                event.put("method", "eventAdd");
+                onMessage(event);
+            }
+
+            final HtspMessage lastEvent = events[events.length - 1];
+            if (events.length < PRIORITY_FETCH_PAGE_SIZE || !lastEvent.containsKey("nextEventId")
+                    || lastEvent.getLong(PROGRAM_START_TIME_KEY, 0) >= maxTime) {
+                return true;
+            }
+
+            nextEventId = lastEvent.getInteger("nextEventId");
+        }
+    }
+
+    private void sendEnableAsyncMetadata(@NonNull HtspMessage enableAsyncMetadataRequest) {
+        try {
+            mDispatcher.sendMessage(enableAsyncMetadataRequest);
+        } catch (HtspNotConnectedException e) {
+            Log.d(TAG, "Failed to enable async metadata, HTSP not connected", e);
+        }
+    }
+
+    /**
+     * Called once everything in the EPG window has been committed to the TV provider.
+     */
+    private void syncWindowCommitted() {
+        // Remember what we stored, so the next sync can skip unchanged events
+        mEventHashes.save();
+
+        if (mSnapshotSeeding) {
+            mSnapshot.markComplete();
+            mSnapshotSeeding = false;
+        }
+        mSnapshot.compactIfNeeded(mChannelIdMap.size() + mProgramIdMap.size());
+        mSnapshot.flush();
+
+        // Move the lastUpdate checkpoint up to this sync
+        mCheckpoint.onInitialSyncCompleted();
+    }
+
+    private void rebuildFromSnapshot() {
+        final EpgSnapshot.Contents contents = mSnapshot.read();
+        if (contents == null) {
+            // We can't vouch for the snapshot any more, record a new one
+            mSnapshot.reset();
+            mSnapshotSeeding = true;
+            return;
+        }
+
+        Log.i(TAG, "Rebuilding " + contents.channels.size() + " channels and "
+                + contents.events.size() + " events from the EPG snapshot");
+
+        for (int i = 0; i < contents.channels.size(); i++) {
+            final ContentValues values = contents.channels.valueAt(i);
+            mChannelWriter.add(
+                    contents.channels.keyAt(i),
+                    parseChannelNumber(values.getAsString(TvContractCompat.Channels.COLUMN_DISPLAY_NUMBER)),
+                    ContentProviderOperation.newInsert(TvContractCompat.Channels.CONTENT_URI)
+                            .withValues(values)
+                            .build(),
+                    values);
+        }
+        mChannelWriter.flush();
+
+        for (int i = 0; i < contents.events.size(); i++) {
+            final int eventId = contents.events.keyAt(i);
+            final long androidChannelId = getAndroidChannelId(contents.eventChannelIds.get(eventId));
+            if (androidChannelId == TvContractUtils.INVALID_CHANNEL_ID) {
+                continue;
+            }
+
+            final ContentValues values = contents.events.valueAt(i);
+            values.put(TvContractCompat.Programs.COLUMN_CHANNEL_ID, androidChannelId);
+            mPendingEventHashes.put(eventId, EventHashStore.hash(values));
+
+            mProgramWriter.add(
+                    eventId,
+                    ContentProviderOperation.newInsert(TvContractCompat.Programs.CONTENT_URI)
+                            .withValues(values)
+                            .build(),
+                    values);
+        }
+        mProgramWriter.flush();
+
+        Log.i(TAG, "EPG snapshot restored");
+    }
+
+    private static int parseChannelNumber(String displayNumber) {
+        if (displayNumber == null) {
+            return -1;
+        }
+
+        final int dot = displayNumber.indexOf('.');
+        try {
+            return Integer.parseInt(dot < 0 ? displayNumber : displayNumber.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.tvprovider.media.tv.TvContractCompat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import ie.macinnes.tvheadend.IntLongMap;
+
+/**
+ * Remembers a 64-bit hash of the program columns last written for each EPG event, so that
+ * updates which wouldn't change the stored row can be skipped.
+ * <p>
+ * The hashes are kept in memory while syncing, and saved to a small binary file between syncs. The
+ * file is removed as soon as the in-memory hashes move on from it, so a stale file can never
+ * cause an update to be wrongly skipped.
+ */
+class EventHashStore {
+    private static final String TAG = EventHashStore.class.getSimpleName();
+
+    private static final String FILE_NAME = "epg_event_hashes.bin";
+    private static final int FILE_VERSION = 1;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    // Mixed in for a column explicitly set to null
+    private static final long NULL_MARKER = 0x100;
+
+    // Every program column EpgSyncTask may write. The order is part of the hash, don't reorder.
+    @SuppressWarnings("deprecation")
+    private static final String[] HASHED_COLUMNS = {
+            TvContractCompat.Programs.COLUMN_CHANNEL_ID,
+            TvContractCompat.Programs.COLUMN_INTERNAL_PROVIDER_DATA,
+            TvContractCompat.Programs.COLUMN_TITLE,
+            TvContractCompat.Programs.COLUMN_SHORT_DESCRIPTION,
+            TvContractCompat.Programs.COLUMN_LONG_DESCRIPTION,
+            TvContractCompat.Programs.COLUMN_CANONICAL_GENRE,
+            TvContractCompat.Programs.COLUMN_CONTENT_RATING,
+            TvContractCompat.Programs.COLUMN_START_TIME_UTC_MILLIS,
+            TvContractCompat.Programs.COLUMN_END_TIME_UTC_MILLIS,
+            TvContractCompat.Programs.COLUMN_EPISODE_TITLE,
+            TvContractCompat.Programs.COLUMN_SEASON_DISPLAY_NUMBER,
+            TvContractCompat.Programs.COLUMN_EPISODE_DISPLAY_NUMBER,
+            TvContractCompat.Programs.COLUMN_SEASON_NUMBER,
+            TvContractCompat.Programs.COLUMN_EPISODE_NUMBER,
+            TvContractCompat.Programs.COLUMN_POSTER_ART_URI,
+    };
+
+    private final File mFile;
+    private final IntLongMap mHashes = new IntLongMap();
+    private boolean mFileCurrent = false;
+
+    EventHashStore(@NonNull Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Hashes the mapped program columns present in the given values. A column explicitly set to
+     * null clears it, so it hashes differently from an absent one.
+     */
+    static long hash(@NonNull ContentValues values) {
+        long hash = FNV_OFFSET_BASIS;
+
+        for (int i = 0; i < HASHED_COLUMNS.length; i++) {
+            if (!values.containsKey(HASHED_COLUMNS[i])) {
+                continue;
+            }
+
+            // Mix in the column index, so a value can't be mistaken for a neighbouring column's
+            hash = (hash ^ i) * FNV_PRIME;
+
+            final Object value = values.get(HASHED_COLUMNS[i]);
+            if (value == null) {
+                // Outside the byte range the values below mix in, so it can't look like one
+                hash = (hash ^ NULL_MARKER) * FNV_PRIME;
+            } else if (value instanceof Number) {
+                long number = ((Number) value).longValue();
+                for (int b = 0; b < 8; b++) {
+                    hash = (hash ^ (number & 0xff)) * FNV_PRIME;
+                    number >>>= 8;
+                }
+            } else {
+                final String string = value.toString();
+                for (int c = 0; c < string.length(); c++) {
+                    final char ch = string.charAt(c);
+                    hash = (hash ^ (ch & 0xff)) * FNV_PRIME;
+                    hash = (hash ^ (ch >>> 8)) * FNV_PRIME;
+                }
+                // Terminate strings, so "ab" + "c" differs from "a" + "bc"
+                hash = (hash ^ 0xff) * FNV_PRIME;
+            }
+        }
+
+        return hash;
+    }
+
+    /**
+     * @return True if the given hash matches the one last stored for the event
+     */
+    boolean isUnchanged(int eventId, long hash) {
+        return mHashes.containsKey(eventId) && mHashes.get(eventId, 0) == hash;
+    }
+
+    void put(int eventId, long hash) {
+        mHashes.put(eventId, hash);
+        invalidateFile();
+    }
+
+    void remove(int eventId) {
+        mHashes.remove(eventId);
+        invalidateFile();
+    }
+
+    void load() {
+        mHashes.clear();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != FILE_VERSION) {
+                Log.w(TAG, "Ignoring event hashes with unknown file version");
+                return;
+            }
+
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                mHashes.put(in.readInt(), in.readLong());
+            }
+
+            mFileCurrent = true;
+            Log.d(TAG, "Loaded " + count + " event hashes");
+        } catch (FileNotFoundException e) {
+            // First sync, nothing to load
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load event hashes, starting afresh", e);
+            mHashes.clear();
+        }
+    }
+
+    void save() {
+        final File tmpFile = new File(mFile.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(FILE_VERSION);
+            final int[] eventIds = mHashes.keys();
+            out.writeInt(eventIds.length);
+            for (int eventId : eventIds) {
+                out.writeInt(eventId);
+                out.writeLong(mHashes.get(eventId, 0));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save event hashes", e);
+            tmpFile.delete();
+            return;
+        }
+
+        if (!tmpFile.renameTo(mFile)) {
+            Log.w(TAG, "Failed to replace event hashes file");
+            tmpFile.delete();
+            return;
+        }
+
+        mFileCurrent = true;
+        Log.d(TAG, "Saved " + mHashes.size() + " event hashes");
+    }
+
+    // Internal Methods
+    private void invalidateFile() {
+        if (mFileCurrent) {
+            mFileCurrent = false;
+            if (!mFile.delete()) {
+                Log.w(TAG, "Failed to remove stale event hashes file");
+            }
+        }
+    }
+}
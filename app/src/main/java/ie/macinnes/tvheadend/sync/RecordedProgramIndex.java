@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.tvheadend.sync;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import ie.macinnes.tvheadend.IntLongMap;
+import ie.macinnes.tvheadend.TvContractUtils;
+
+/**
+ * An in-memory index from TVHeadend DVR entry IDs to the rows of their recorded programs.
+ * <p>
+ * It is built from the provider once, then kept up to date by EpgSyncTask as it writes recorded
+ * programs, so resolving an entry never needs a scan of the RecordedPrograms table. DvrDeleteTask
+ * shares the same index to map rows deleted by the user back to their DVR entries. Thread safe.
+ */
+class RecordedProgramIndex {
+    private static final String TAG = RecordedProgramIndex.class.getSimpleName();
+
+    static final long INVALID_ROW_ID = -1;
+    static final int INVALID_DVR_ENTRY_ID = -1;
+
+    private final IntLongMap mRowIds;
+
+    RecordedProgramIndex(@NonNull Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            mRowIds = TvContractUtils.buildRecordedProgramIdMap(context);
+            Log.d(TAG, "Indexed " + mRowIds.size() + " recorded programs");
+        } else {
+            mRowIds = new IntLongMap();
+        }
+    }
+
+    /**
+     * @return The recorded program's row ID, or {@link #INVALID_ROW_ID} if it has none
+     */
+    synchronized long getRowId(int dvrEntryId) {
+        return mRowIds.get(dvrEntryId, INVALID_ROW_ID);
+    }
+
+    /**
+     * Reverse lookup, for the rare case of a recorded program deleted from outside the app.
+     *
+     * @return The DVR entry ID for a row, or {@link #INVALID_DVR_ENTRY_ID} if it isn't indexed
+     */
+    synchronized int getDvrEntryId(long rowId) {
+        for (int dvrEntryId : mRowIds.keys()) {
+            if (mRowIds.get(dvrEntryId, INVALID_ROW_ID) == rowId) {
+                return dvrEntryId;
+            }
+        }
+        return INVALID_DVR_ENTRY_ID;
+    }
+
+    synchronized void put(int dvrEntryId, long rowId) {
+        mRowIds.put(dvrEntryId, rowId);
+    }
+
+    synchronized void remove(int dvrEntryId) {
+        mRowIds.remove(dvrEntryId);
+    }
+
+    /**
+     * @return A snapshot of the indexed DVR entry IDs
+     */
+    synchronized int[] getDvrEntryIds() {
+        return mRowIds.keys();
+    }
+}
@@ -163,6 +163,7 @@ public class HtspConnection implements Runnable {
     private final Writer mWriter;
 
     private boolean mRunning = false;
+    private volatile boolean mReadPaused = false;
     private final Lock mLock = new ReentrantLock();
     private State mState = State.CLOSED;
 
@@ -241,10 +242,11 @@ public class HtspConnection implements Runnable {
                     break;
                 }
 
+                final int readOperation = mReadPaused ? 0 : SelectionKey.OP_READ;
                 if (mSocketChannel != null && mSocketChannel.isConnected() && mWriter.hasPendingData()) {
-                    mSocketChannel.register(mSelector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    mSocketChannel.register(mSelector, readOperation | SelectionKey.OP_WRITE);
                 } else if (mSocketChannel != null && mSocketChannel.isConnected()) {
-                    mSocketChannel.register(mSelector, SelectionKey.OP_READ);
+                    mSocketChannel.register(mSelector, readOperation);
                 }
             } catch (Exception e) {
                 Log.e(TAG, "Something failed - shutting down", e);
@@ -368,6 +370,31 @@ public class HtspConnection implements Runnable {
         }
     }
 
+    /**
+     * Stops or resumes reading from the server, while writes carry on. With reads paused, TCP
+     * pushes back on the server. May be called from any thread.
+     */
+    public void setReadPaused(boolean paused) {
+        if (mReadPaused == paused) {
+            return;
+        }
+
+        if (HtspConstants.DEBUG)
+            Log.d(TAG, (paused ? "Pausing" : "Resuming") + " reads from SocketChannel");
+
+        mReadPaused = paused;
+
+        mLock.lock();
+        try {
+            // The main loop picks up the change when it re-registers the SocketChannel
+            if (mSelector != null) {
+                mSelector.wakeup();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
     public boolean isConnected() {
         return getState() == State.CONNECTED;
     }
@@ -433,6 +460,7 @@ public class HtspConnection implements Runnable {
             }
 
             setState(State.CONNECTING);
+            mReadPaused = false;
 
             try {
                 mSocketChannel = SocketChannel.open();
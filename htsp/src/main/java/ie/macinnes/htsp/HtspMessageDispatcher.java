@@ -87,7 +87,9 @@ public class HtspMessageDispatcher implements HtspMessage.DispatcherInternal, Ht
 
         // Record the Sequence Number and Method
         if (message.containsKey("method")) {
-            sMessageResponseMethodsBySequence.append(message.getLong("seq"), message.getString("method"));
+            synchronized (sMessageResponseMethodsBySequence) {
+                sMessageResponseMethodsBySequence.append(message.getLong("seq"), message.getString("method"));
+            }
         }
 
         mQueue.add(message);
@@ -119,11 +121,14 @@ public class HtspMessageDispatcher implements HtspMessage.DispatcherInternal, Ht
         Object lock = new Object();
         try {
             Log.v(TAG, "Putting " + seq + " into mSequenceLocks");
-            mSequenceLocks.put(seq, lock);
-
-            sendMessage(message);
+            synchronized (mSequenceLocks) {
+                mSequenceLocks.put(seq, lock);
+            }
 
+            // Hold the lock while sending, so a fast response can't notify before we're waiting
             synchronized (lock) {
+                sendMessage(message);
+
                 try {
                     lock.wait(timeout);
                 } catch (InterruptedException e) {
@@ -131,10 +136,14 @@ public class HtspMessageDispatcher implements HtspMessage.DispatcherInternal, Ht
                 }
             }
 
-            return mSequenceResponses.get(seq);
+            synchronized (mSequenceLocks) {
+                return mSequenceResponses.get(seq);
+            }
         } finally {
-            mSequenceLocks.remove(seq);
-            mSequenceResponses.remove(seq);
+            synchronized (mSequenceLocks) {
+                mSequenceLocks.remove(seq);
+                mSequenceResponses.remove(seq);
+            }
         }
     }
 
@@ -146,26 +155,35 @@ public class HtspMessageDispatcher implements HtspMessage.DispatcherInternal, Ht
             // Reply messages don't include a method, only the sequence supplied in the request, so
             // if we have this sequence in our lookup table, go ahead and add the method into the
             // message.
-            if (sMessageResponseMethodsBySequence.indexOfKey(seq) >= 0) {
-                if (!message.containsKey("method")) {
-                    message.put("method", sMessageResponseMethodsBySequence.get(seq));
-                }
+            synchronized (sMessageResponseMethodsBySequence) {
+                if (sMessageResponseMethodsBySequence.indexOfKey(seq) >= 0) {
+                    if (!message.containsKey("method")) {
+                        message.put("method", sMessageResponseMethodsBySequence.get(seq));
+                    }
 
-                // Clear the sequence from our lookup table, it's no longer needed.
-                sMessageResponseMethodsBySequence.remove(seq);
+                    // Clear the sequence from our lookup table, it's no longer needed.
+                    sMessageResponseMethodsBySequence.remove(seq);
+                }
             }
 
             // If we have a SequenceLock for this seq, the message is part of a blocking request/
             // reply, so stash it in place of lock, notify the lock and don't pass the message onto
-            // the other listeners.
-            if (mSequenceLocks.indexOfKey(seq) >= 0) {
+            // the other listeners. Several threads may be blocked on responses at once (e.g.
+            // parallel fileRead requests), so the lookup tables are guarded by mSequenceLocks.
+            Object lock;
+            synchronized (mSequenceLocks) {
+                lock = mSequenceLocks.get(seq);
+                if (lock != null) {
+                    mSequenceResponses.put(seq, message);
+                    mSequenceLocks.remove(seq);
+                }
+            }
+
+            if (lock != null) {
                 Log.v(TAG, "Found " + seq + " in mSequenceLocks, synchronous response");
-                Object lock = mSequenceLocks.get(seq);
-                mSequenceResponses.put(seq, message);
                 synchronized (lock) {
                     lock.notify();
                 }
-                mSequenceLocks.remove(seq);
                 return;
             }
         }
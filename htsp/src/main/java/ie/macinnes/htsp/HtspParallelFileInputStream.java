@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2017 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ie.macinnes.htsp;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/**
+ * Fetches a file over a HTSP Connection, reading several adjacent ranges of the file in parallel.
+ * <p>
+ * The file is opened once per concurrent range, as each fileOpen gives us an independent file ID,
+ * and the fetched ranges are handed back to the reader strictly in order. On high latency links
+ * this fills the player's buffer several times faster than {@link HtspFileInputStream}, which
+ * waits for each chunk before requesting the next.
+ */
+public class HtspParallelFileInputStream extends InputStream {
+
+    private static final String TAG = HtspParallelFileInputStream.class.getSimpleName();
+
+    private static final int CHUNK_SIZE = 1024000;
+    private static final int TIMEOUT = 5000;
+
+    public static final int DEFAULT_MAX_CONCURRENT_RANGES = 4;
+    private static final int MAX_CONCURRENT_RANGES = 8;
+
+    private final HtspMessage.Dispatcher mDispatcher;
+    private final String mFileName;
+    private final int mMaxConcurrentRanges;
+
+    private final List<Integer> mFileIds = new ArrayList<>();
+    private final BlockingQueue<Integer> mIdleFileIds = new LinkedBlockingQueue<>();
+    private final ArrayDeque<Future<byte[]>> mPendingRanges = new ArrayDeque<>();
+    private final ExecutorService mExecutor;
+
+    private ByteBuffer mBuffer = ByteBuffer.allocate(0);
+
+    private long mFileSize = -1;
+    private long mNextRangeOffset;
+    private boolean mEndOfFile = false;
+    private boolean mClosed = false;
+
+    public HtspParallelFileInputStream(@NonNull HtspMessage.Dispatcher dispatcher, String fileName, long offset, int maxConcurrentRanges) throws IOException {
+        mDispatcher = dispatcher;
+        mFileName = fileName;
+        mNextRangeOffset = offset;
+
+        Log.i(TAG, "Opening HtspParallelFileInputStream for " + mFileName);
+
+        sendFileOpen();
+
+        if (mFileSize == -1) {
+            // Without a known size, we can't tell where the file ends. Fetch one range at a time.
+            mMaxConcurrentRanges = 1;
+        } else {
+            mMaxConcurrentRanges = Math.max(1, Math.min(maxConcurrentRanges, MAX_CONCURRENT_RANGES));
+        }
+
+        try {
+            // The first file ID came from the fileOpen above, open the rest.
+            while (mFileIds.size() < mMaxConcurrentRanges) {
+                sendFileOpen();
+            }
+        } catch (IOException e) {
+            // We can live with fewer concurrent ranges than we asked for.
+            Log.w(TAG, "Failed to open " + mFileName + " more than " + mFileIds.size() + " times", e);
+        }
+
+        mIdleFileIds.addAll(mFileIds);
+        mExecutor = Executors.newFixedThreadPool(mFileIds.size());
+
+        scheduleRanges();
+    }
+
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    // InputStream Methods
+    @Override
+    public int read() throws IOException {
+        if (!fillBuffer()) {
+            return -1;
+        }
+
+        return mBuffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!fillBuffer()) {
+            return -1;
+        }
+
+        int length = Math.min(len, mBuffer.remaining());
+        mBuffer.get(b, off, length);
+
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+
+        mClosed = true;
+
+        for (Future<byte[]> range : mPendingRanges) {
+            range.cancel(true);
+        }
+        mPendingRanges.clear();
+        mExecutor.shutdownNow();
+
+        // Close every file ID, even if one of them fails
+        IOException closeException = null;
+        for (int fileId : mFileIds) {
+            try {
+                sendFileClose(fileId);
+            } catch (IOException e) {
+                if (closeException == null) {
+                    closeException = e;
+                }
+            }
+        }
+
+        if (closeException != null) {
+            throw closeException;
+        }
+    }
+
+    // Internal Methods
+    private boolean fillBuffer() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed");
+        }
+
+        while (!mBuffer.hasRemaining()) {
+            if (mEndOfFile || mPendingRanges.isEmpty()) {
+                return false;
+            }
+
+            byte[] data;
+            try {
+                data = mPendingRanges.remove().get();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while reading " + mFileName, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Failed to read data for " + mFileName, e.getCause());
+            }
+
+            if (data.length == 0) {
+                // A short read of nothing at all means we've run off the end of the file
+                mEndOfFile = true;
+                return false;
+            }
+
+            mBuffer = ByteBuffer.wrap(data);
+
+            if (mFileSize == -1 && data.length < CHUNK_SIZE) {
+                // Without a known size, a short range is the end of the file, don't fetch past it
+                continue;
+            }
+
+            // Keep the window of in-flight ranges full
+            scheduleRanges();
+        }
+
+        return true;
+    }
+
+    private void scheduleRanges() {
+        while (mPendingRanges.size() < mMaxConcurrentRanges) {
+            if (mFileSize != -1 && mNextRangeOffset >= mFileSize) {
+                return;
+            }
+
+            long size = CHUNK_SIZE;
+            if (mFileSize != -1 && mNextRangeOffset + size > mFileSize) {
+                // Make sure we don't overrun the file
+                size = mFileSize - mNextRangeOffset;
+            }
+
+            mPendingRanges.add(mExecutor.submit(new RangeFetch(mNextRangeOffset, size)));
+            mNextRangeOffset += size;
+        }
+    }
+
+    private class RangeFetch implements Callable<byte[]> {
+        private final long mOffset;
+        private final long mSize;
+
+        RangeFetch(long offset, long size) {
+            mOffset = offset;
+            mSize = size;
+        }
+
+        @Override
+        public byte[] call() throws Exception {
+            final int fileId = mIdleFileIds.take();
+
+            try {
+                byte[] data = sendFileRead(fileId, mSize, mOffset);
+                if (data.length == 0 || data.length >= mSize) {
+                    return data;
+                }
+
+                // Short read, fetch the remainder so that the next range still lines up with this one
+                byte[] range = new byte[(int) mSize];
+                int filled = data.length;
+                System.arraycopy(data, 0, range, 0, filled);
+
+                while (filled < mSize) {
+                    data = sendFileRead(fileId, mSize - filled, mOffset + filled);
+                    if (data.length == 0) {
+                        break;
+                    }
+                    System.arraycopy(data, 0, range, filled, data.length);
+                    filled += data.length;
+                }
+
+                if (filled == mSize) {
+                    return range;
+                }
+
+                if (mFileSize != -1) {
+                    // Ranges never run past the known size, so the ranges after this one would no
+                    // longer line up with it
+                    throw new IOException("Short read of " + mFileName + ", got " + filled + " of " + mSize
+                            + " bytes at offset " + mOffset);
+                }
+
+                return Arrays.copyOf(range, filled);
+            } finally {
+                mIdleFileIds.add(fileId);
+            }
+        }
+    }
+
+    private void sendFileOpen() throws IOException {
+        HtspMessage fileOpenRequest = new HtspMessage();
+
+        fileOpenRequest.put("method", "fileOpen");
+        fileOpenRequest.put("file", mFileName);
+
+        HtspMessage fileOpenResponse;
+        try {
+            fileOpenResponse = mDispatcher.sendMessage(fileOpenRequest, TIMEOUT);
+        } catch (HtspNotConnectedException e) {
+            throw new IOException("Failed to send fileOpen request", e);
+        }
+
+        if (fileOpenResponse == null) {
+            throw new IOException("Failed to receive response to fileOpen request");
+        } else if (fileOpenResponse.containsKey("error")) {
+            String error = fileOpenResponse.getString("error");
+            Log.e(TAG, "Received error when opening file: " + error);
+            throw new FileNotFoundException(error);
+        }
+
+        mFileIds.add(fileOpenResponse.getInteger("id"));
+
+        if (fileOpenResponse.containsKey("size")) {
+            // Size is optional
+            mFileSize = fileOpenResponse.getLong("size");
+            Log.v(TAG, "Opened file " + mFileName + " of size " + mFileSize + " successfully");
+        } else {
+            Log.v(TAG, "Opened file " + mFileName + " successfully");
+        }
+    }
+
+    private byte[] sendFileRead(int fileId, long size, long offset) throws IOException {
+        HtspMessage fileReadRequest = new HtspMessage();
+
+        fileReadRequest.put("method", "fileRead");
+        fileReadRequest.put("id", fileId);
+        fileReadRequest.put("size", size);
+        fileReadRequest.put("offset", offset);
+
+        if (HtspConstants.DEBUG)
+            Log.v(TAG, "Fetching " + size + " bytes of file at offset " + offset + " (ID: " + fileId + ")");
+
+        HtspMessage fileReadResponse;
+        try {
+            fileReadResponse = mDispatcher.sendMessage(fileReadRequest, TIMEOUT);
+        } catch (HtspNotConnectedException e) {
+            throw new IOException("Failed to send fileRead request", e);
+        }
+
+        if (fileReadResponse == null) {
+            throw new IOException("Failed to receive response to fileRead request");
+        } else if (fileReadResponse.containsKey("error")) {
+            String error = fileReadResponse.getString("error");
+            Log.e(TAG, "Received error when reading file: " + error);
+            throw new IOException(error);
+        }
+
+        final byte[] data = fileReadResponse.getByteArray("data");
+
+        if (HtspConstants.DEBUG)
+            Log.v(TAG, "Fetched " + data.length + " bytes of file at offset " + offset + " (ID: " + fileId + ")");
+
+        return data;
+    }
+
+    private void sendFileClose(int fileId) throws IOException {
+        Log.v(TAG, "Closing file " + mFileName + " (ID: " + fileId + ")");
+
+        HtspMessage fileCloseRequest = new HtspMessage();
+
+        fileCloseRequest.put("method", "fileClose");
+        fileCloseRequest.put("id", fileId);
+
+        // We just go ahead and send the close without waiting for a response, if it fails, oh well.
+        try {
+            mDispatcher.sendMessage(fileCloseRequest);
+        } catch (HtspNotConnectedException e) {
+            throw new IOException("Failed to send fileClose request", e);
+        }
+    }
+}
@@ -368,7 +368,8 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
 
     // Misc Internal Methods
     private void onSubscriptionStart(@NonNull HtspMessage message) {
-        // TODO: -1000 is a total hack, we're running this about 500ms after the actual start time..
+        // A rough guess until the first timeshiftStatus anchors the PTS to the wall clock, we're
+        // running this about 500ms after the actual start time..
         mStartTime = (System.currentTimeMillis() * 1000) - 1000;
     }
 
@@ -408,6 +409,12 @@ public class Subscriber implements HtspMessage.Listener, Authenticator.Listener
 
     private void onTimeshiftStatus(@NonNull HtspMessage message) {
         mTimeshiftStatus = message;
+
+        if (message.containsKey("end")) {
+            // The last frame in the buffer is the live edge, which is now. That gives us the wall
+            // clock time of PTS 0 without guessing when the subscription started.
+            mStartTime = (System.currentTimeMillis() * 1000) - message.getLong("end");
+        }
     }
 
     private void startTimer() {